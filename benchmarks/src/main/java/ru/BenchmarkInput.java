@@ -0,0 +1,130 @@
+package ru;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** <summary>
+ *      Input files shared by all benchmarks of a trial: a TLK file and the XML exported from it.
+ *      'input' is either "BIOGame_RUS" (the sample from files/ directory, or -Dtlk.file=path)
+ *      or a number of strings of a synthetic TLK generated with fixed seed.
+ * </summary>
+ */
+@State(Scope.Benchmark)
+public class BenchmarkInput {
+
+    private static final String SAMPLE = "BIOGame_RUS";
+    private static final String ALPHABET = "абвгдеёжзийклмнопрстуфхцчшщъыьэюя"
+            + "АБВГДЕЖЗИКЛМНОПРСТУФХЦЧШЩЭЮЯabcdefghijklmnopqrstuvwxyz0123456789";
+
+    @Param({SAMPLE, "10000", "100000"})
+    public String input;
+
+    public Path dir;
+    public String tlkFile;
+    public String xmlFile;
+
+    @Setup(Level.Trial)
+    public void prepare() throws Exception {
+        dir = Files.createTempDirectory("tlk-bench");
+        xmlFile = dir.resolve("input.xml").toString();
+        if (SAMPLE.equals(input)) {
+            tlkFile = sampleTlkFile();
+            TlkFile tf = new TlkFile();
+            tf.loadTlkData(tlkFile, true);
+            tf.storeToFile(xmlFile, FileFormat.XML);
+        } else {
+            tlkFile = dir.resolve("input.tlk").toString();
+            writeSyntheticXml(xmlFile, Integer.parseInt(input));
+            HuffmanCompression hc = new HuffmanCompression();
+            hc.loadInputData(xmlFile, FileFormat.XML, false);
+            hc.saveToTlkFile(tlkFile, true);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanUp() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /** <summary>
+     *      Temporary file for benchmark output, it's overwritten by every invocation.
+     * </summary>
+     */
+    public String outputFile(String name) {
+        return dir.resolve(name).toString();
+    }
+
+    private static String sampleTlkFile() {
+        String configured = System.getProperty("tlk.file");
+        if (configured != null) {
+            return configured;
+        }
+        for (String candidate : new String[]{"files/BIOGame_RUS.tlk", "../files/BIOGame_RUS.tlk"}) {
+            if (new File(candidate).isFile()) {
+                return new File(candidate).getAbsolutePath();
+            }
+        }
+        throw new IllegalStateException("BIOGame_RUS.tlk not found, set -Dtlk.file=path");
+    }
+
+    /** <summary>
+     *      Writes XML in the format of TLK export: male section with every String ID
+     *      and female section repeating every tenth of them. Strings are 1-40 random words.
+     * </summary>
+     */
+    private static void writeSyntheticXml(String fileName, int count) throws IOException {
+        Random random = new Random(count);
+        int femaleCount = count / 10;
+        try (IndentingXmlWriter xr = new IndentingXmlWriter(Files.newBufferedWriter(new File(fileName).toPath(), StandardCharsets.UTF_8))) {
+            xr.writeStartElement("tlkFile");
+            xr.writeAttribute("TLKToolVersion", "1.0.4");
+            for (int position = 0; position < count + femaleCount; position++) {
+                int id = position < count ? position : (position - count) * 10;
+                xr.writeStartElement("string");
+                xr.writeStartElement("id");
+                xr.writeCharacters(String.valueOf(id));
+                xr.writeEndElement();
+                xr.writeStartElement("position");
+                xr.writeCharacters(String.valueOf(position));
+                xr.writeEndElement();
+                xr.writeStartElement("data");
+                xr.writeCharacters(randomText(random));
+                xr.writeEndElement();
+                xr.writeEndElement();
+            }
+            xr.writeEndDocument();
+        }
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int words = 1 + random.nextInt(40);
+        for (int w = 0; w < words; w++) {
+            if (w > 0) {
+                sb.append(' ');
+            }
+            int length = 1 + random.nextInt(10);
+            for (int i = 0; i < length; i++) {
+                /* skewed distribution, so the tree has codes of different lengths */
+                int c = (int) (ALPHABET.length() * Math.pow(random.nextDouble(), 2));
+                sb.append(ALPHABET.charAt(c));
+            }
+        }
+        return sb.append('.').toString();
+    }
+}
@@ -0,0 +1,48 @@
+package ru;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** <summary>
+ *      XML to TLK direction: reading XML with building of the Huffman Tree and writing compressed TLK.
+ * </summary>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HuffmanCompressionBenchmark {
+
+    private HuffmanCompression loaded;
+
+    @Setup(Level.Trial)
+    public void prepare(BenchmarkInput input) throws Exception {
+        loaded = new HuffmanCompression();
+        loaded.loadInputData(input.xmlFile, FileFormat.XML, false);
+    }
+
+    @Benchmark
+    public HuffmanCompression loadInputData(BenchmarkInput input) throws Exception {
+        HuffmanCompression hc = new HuffmanCompression();
+        hc.loadInputData(input.xmlFile, FileFormat.XML, false);
+        return hc;
+    }
+
+    @Benchmark
+    public void saveToTlkFile(BenchmarkInput input) throws Exception {
+        loaded.saveToTlkFile(input.outputFile("output.tlk"), true);
+    }
+}
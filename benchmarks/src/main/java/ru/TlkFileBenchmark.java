@@ -0,0 +1,122 @@
+package ru;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** <summary>
+ *      TLK to text direction: loading (decoding) TLK files, single string lookups, full-text search
+ *      and export to XML, TXT and CSV.
+ * </summary>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TlkFileBenchmark {
+
+    private static final int LOOKUPS = 1024;
+    private static final int QUERIES = 64;
+
+    private TlkFile loaded;
+    private TlkFile lazy;
+    private int[] lookupIds;
+    private TlkSearchIndex searchIndex;
+    private String[] queries;
+
+    @Setup(Level.Trial)
+    public void prepare(BenchmarkInput input) throws Exception {
+        loaded = new TlkFile();
+        loaded.loadTlkData(input.tlkFile, true);
+
+        /* cache of size 0 never keeps decoded data, so every lookup decodes its string */
+        lazy = new TlkFile();
+        lazy.setStringCache(new LruStringCache(0));
+        lazy.loadTlkData(input.tlkFile, true, LoadMode.LAZY);
+
+        List<TlkFile.TlkStringRef> stringRefs = lazy.getStringRefs();
+        Random random = new Random(42);
+        lookupIds = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            lookupIds[i] = stringRefs.get(random.nextInt(stringRefs.size())).getStringId();
+        }
+
+        /* queries are five chars taken from random strings, so every one of them has at least one match */
+        searchIndex = new TlkSearchIndex(loaded);
+        List<TlkFile.TlkStringRef> loadedRefs = loaded.getStringRefs();
+        queries = new String[QUERIES];
+        for (int i = 0; i < QUERIES; ) {
+            String data = loadedRefs.get(random.nextInt(loadedRefs.size())).getData();
+            if (data != null && data.length() >= 5) {
+                int start = random.nextInt(data.length() - 4);
+                queries[i++] = data.substring(start, start + 5);
+            }
+        }
+    }
+
+    @Benchmark
+    public TlkFile loadTlkData(BenchmarkInput input) throws Exception {
+        TlkFile tf = new TlkFile();
+        tf.loadTlkData(input.tlkFile, true);
+        return tf;
+    }
+
+    @Benchmark
+    public TlkFile loadTlkDataParallel(BenchmarkInput input) throws Exception {
+        TlkFile tf = new TlkFile();
+        tf.loadTlkData(input.tlkFile, true, LoadMode.PARALLEL);
+        return tf;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void getString(Blackhole bh) {
+        for (int id : lookupIds) {
+            bh.consume(lazy.getString(id));
+        }
+    }
+
+    @Benchmark
+    public TlkSearchIndex buildSearchIndex() {
+        return new TlkSearchIndex(loaded);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public void findSubstring(Blackhole bh) {
+        for (String query : queries) {
+            bh.consume(searchIndex.findSubstring(query));
+        }
+    }
+
+    @Benchmark
+    public void storeToXmlFile(BenchmarkInput input) throws Exception {
+        loaded.storeToFile(input.outputFile("output.xml"), FileFormat.XML);
+    }
+
+    @Benchmark
+    public void storeToTextFile(BenchmarkInput input) throws Exception {
+        loaded.storeToFile(input.outputFile("output.txt"), FileFormat.TXT);
+    }
+
+    @Benchmark
+    public void storeToCsvFile(BenchmarkInput input) throws Exception {
+        loaded.storeToFile(input.outputFile("output.csv"), FileFormat.CSV);
+    }
+}
@@ -0,0 +1,303 @@
+package ru;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** <summary>
+ *      Headless entry point converting many files at once: every *.tlk input is exported to XML (or TXT, CSV)
+ *      and every *.xml input is compressed to TLK. Files are converted concurrently on a bounded pool.
+ * </summary>
+ * <remarks>
+ *      Exit code is 0 if every file was converted, 1 if any conversion failed and 2 for wrong arguments.
+ * </remarks>
+ */
+public class BatchConverter {
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: BatchConverter [options] <file.tlk|file.xml>...",
+            "  -t, --threads <n>      number of files converted at once (default: number of processors)",
+            "  -o, --output-dir <dir> directory for output files (default: next to every input)",
+            "  -f, --format <xml|txt|csv>",
+            "                         output format of TLK export (default: xml)",
+            "  -p, --pipeline         decode strings on a separate thread while they're written instead of loading them all first",
+            "  -x, --index            keep decoded strings in an index file next to every TLK file and read them from it",
+            "                         while the TLK file doesn't change",
+            "  -d, --debug            prepend String IDs to strings when compressing XML to TLK",
+            "  -s, --share-suffixes   write duplicates and endings of other strings once when compressing XML to TLK",
+            "  -l, --stable-layout <dir>",
+            "                         keep the Huffman Tree and data of the TLK file with the same name in <dir>",
+            "                         and append only changed strings, so the output differs from it as little as possible",
+            "  -m, --metrics <file>   append stage timings and counters of every conversion to a JSON lines file");
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File outputDir;
+    private FileFormat format = FileFormat.XML;
+    private boolean pipeline;
+    private boolean indexed;
+    private boolean debugVersion;
+    private boolean suffixSharing;
+    private File originalDir;
+    private MetricsListener metricsListener = MetricsListener.NONE;
+    private JsonMetricsFile metricsFile;
+    private final List<File> inputs = new ArrayList<>();
+
+    private static class Result {
+        final File input;
+        final File output;
+        final long millis;
+        final Throwable error;
+        /** failures the conversion recovered from, reported through metrics */
+        final List<String> warnings;
+
+        Result(File input, File output, long millis, Throwable error, List<String> warnings) {
+            this.input = input;
+            this.output = output;
+            this.millis = millis;
+            this.error = error;
+            this.warnings = warnings;
+        }
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    static int run(String[] args) {
+        BatchConverter converter = new BatchConverter();
+        try {
+            converter.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        return converter.convertAll();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-t":
+                case "--threads":
+                    threads = parsePositive(value(args, ++i, arg), arg);
+                    break;
+                case "-o":
+                case "--output-dir":
+                    outputDir = new File(value(args, ++i, arg));
+                    break;
+                case "-f":
+                case "--format":
+                    String f = value(args, ++i, arg).toUpperCase();
+                    if (!f.equals(FileFormat.XML.name()) && !f.equals(FileFormat.TXT.name()) && !f.equals(FileFormat.CSV.name())) {
+                        throw new IllegalArgumentException("Unsupported output format: " + f);
+                    }
+                    format = FileFormat.valueOf(f);
+                    break;
+                case "-p":
+                case "--pipeline":
+                    pipeline = true;
+                    break;
+                case "-x":
+                case "--index":
+                    indexed = true;
+                    break;
+                case "-d":
+                case "--debug":
+                    debugVersion = true;
+                    break;
+                case "-s":
+                case "--share-suffixes":
+                    suffixSharing = true;
+                    break;
+                case "-l":
+                case "--stable-layout":
+                    originalDir = new File(value(args, ++i, arg));
+                    break;
+                case "-m":
+                case "--metrics":
+                    metricsFile = new JsonMetricsFile(value(args, ++i, arg));
+                    metricsListener = metricsFile;
+                    break;
+                default:
+                    if (arg.startsWith("-")) {
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                    }
+                    inputs.add(new File(arg));
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new IllegalArgumentException("No input files");
+        }
+        checkOutputs();
+        if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IllegalArgumentException("Can't create output directory: " + outputDir);
+        }
+    }
+
+    /** <summary>
+     *      Files are converted concurrently, so no output may be written twice or overwrite another input.
+     * </summary>
+     */
+    private void checkOutputs() {
+        Map<Path, File> inputPaths = new HashMap<>();
+        for (File input : inputs) {
+            inputPaths.put(pathOf(input), input);
+        }
+        Map<Path, File> outputPaths = new HashMap<>();
+        for (File input : inputs) {
+            File output = outputFileOf(input);
+            if (output == null) {
+                continue;
+            }
+            Path path = pathOf(output);
+            File other = outputPaths.put(path, input);
+            if (other != null) {
+                throw new IllegalArgumentException("Inputs " + other + " and " + input + " are both converted to " + output);
+            }
+            if (inputPaths.containsKey(path)) {
+                throw new IllegalArgumentException("Output of " + input + " would overwrite input " + inputPaths.get(path));
+            }
+        }
+    }
+
+    private static Path pathOf(File file) {
+        return file.getAbsoluteFile().toPath().normalize();
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static int parsePositive(String s, String option) {
+        try {
+            int n = Integer.parseInt(s);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Positive number expected for " + option + ": " + s);
+    }
+
+    /** <summary>
+     *      Submits every input to the pool and reports results in the order of inputs.
+     * </summary>
+     */
+    private int convertAll() {
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, inputs.size()));
+        List<Future<Result>> futures = new ArrayList<>();
+        for (File input : inputs) {
+            futures.add(pool.submit(() -> convert(input)));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            File input = inputs.get(i);
+            Future<Result> future = futures.get(i);
+            Result result;
+            try {
+                result = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                System.err.println("Interrupted");
+                return 1;
+            } catch (ExecutionException e) {
+                /* convert catches every Exception, only errors like OutOfMemoryError get here,
+                 * they fail this file but the others are still reported */
+                result = new Result(input, null, (System.nanoTime() - start) / 1_000_000, e.getCause(), Collections.emptyList());
+            }
+            if (result.error == null) {
+                System.out.println("OK     " + result.input + " -> " + result.output + " (" + result.millis + " ms)");
+            } else {
+                failed++;
+                System.err.println("FAILED " + result.input + " (" + result.millis + " ms): " + result.error);
+            }
+            for (String warning : result.warnings) {
+                System.err.println("WARN   " + result.input + ": " + warning);
+            }
+        }
+        System.out.println("Converted " + (inputs.size() - failed) + " of " + inputs.size()
+                + " files in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        if (metricsFile != null && metricsFile.getFailure() != null) {
+            System.err.println("WARN   metrics weren't written: " + metricsFile.getFailure());
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    private Result convert(File input) {
+        long start = System.nanoTime();
+        File output = null;
+        List<String> warnings = new ArrayList<>();
+        /** library code doesn't print, failures it recovered from are reported to the console here */
+        MetricsListener listener = metrics -> {
+            metrics.getErrors().forEach((counter, message) -> warnings.add(counter + ": " + message));
+            metricsListener.onMetrics(metrics);
+        };
+        try {
+            String extension = FilenameUtils.getExtension(input.getName()).toLowerCase();
+            if (extension.equals("tlk")) {
+                output = outputFileOf(input);
+                TlkFile tf = new TlkFile();
+                tf.setMetricsListener(listener);
+                tf.setDecodeAhead(pipeline);
+                tf.loadTlkData(input.getPath(), true, indexed ? LoadMode.INDEXED : pipeline ? LoadMode.LAZY : LoadMode.EAGER);
+                tf.storeToFile(output.getPath(), format);
+            } else if (extension.equals("xml")) {
+                output = outputFileOf(input);
+                HuffmanCompression hc = new HuffmanCompression();
+                hc.setMetricsListener(listener);
+                hc.setSuffixSharing(suffixSharing);
+                hc.loadInputData(input.getPath(), FileFormat.XML, debugVersion);
+                if (originalDir != null) {
+                    File original = new File(originalDir, output.getName());
+                    if (original.getAbsoluteFile().equals(output.getAbsoluteFile())) {
+                        throw new IllegalArgumentException("Stable-layout output would overwrite " + original);
+                    }
+                    hc.saveToTlkFileStableLayout(original.getPath(), output.getPath(), true);
+                } else {
+                    hc.saveToTlkFile(output.getPath(), true);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown file type, *.tlk or *.xml expected");
+            }
+            return new Result(input, output, (System.nanoTime() - start) / 1_000_000, null, warnings);
+        } catch (Exception e) {
+            return new Result(input, output, (System.nanoTime() - start) / 1_000_000, e, warnings);
+        }
+    }
+
+    /** <returns>output file of the input or null if its type is unknown</returns> */
+    private File outputFileOf(File input) {
+        String extension = FilenameUtils.getExtension(input.getName()).toLowerCase();
+        if (extension.equals("tlk")) {
+            return outputFile(input, format.name().toLowerCase());
+        } else if (extension.equals("xml")) {
+            return outputFile(input, "tlk");
+        }
+        return null;
+    }
+
+    private File outputFile(File input, String extension) {
+        String name = FilenameUtils.getBaseName(input.getName()) + "." + extension;
+        File dir = outputDir != null ? outputDir : input.getAbsoluteFile().getParentFile();
+        return new File(dir, name);
+    }
+}
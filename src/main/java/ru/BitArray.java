@@ -24,29 +24,42 @@ package ru;/*
  */
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
 import java.util.Arrays;
-import java.util.stream.IntStream;
 
 /**
  * A packed array of booleans.
  *
+ * Bits are kept in 64-bit words, byte k of the array is byte k % 8 (counting from
+ * the least significant one) of word k / 8, so whole words can be read and appended at once.
+ * Single bits are indexed in two orders:
+ *  - Endian.BigEndian (get, set): the most significant bit of every byte goes first,
+ *  - Endian.LittleEndian (getRev, TLK data order): the least significant bit of every byte goes first.
+ *
  * @author Joshua Bloch
  * @author Douglas Hoover
  */
 
 public class BitArray {
 
-    private final byte[] repn;
-    private final int length;
+    private long[] words;
+    private int length;
 
     public static final byte BITS_PER_UNIT = 8;
+    private static final int BITS_PER_WORD = Long.SIZE;
+    private static final int UNITS_PER_WORD = BITS_PER_WORD / BITS_PER_UNIT;
 
-    private static int subscript(int idx) {
-        return idx / BITS_PER_UNIT;
+    private static int wordCount(int bits) {
+        return (bits + BITS_PER_WORD - 1) / BITS_PER_WORD;
     }
 
-    private static int positionBigEndian(int idx) { // bits big-endian in each unit
-        return 1 << (BITS_PER_UNIT - 1 - (idx % BITS_PER_UNIT));
+    /**
+     * Big-endian index of a bit is turned to little-endian by reversing its position in the byte.
+     */
+    private static int littleEndianIndex(int idx) {
+        return idx ^ (BITS_PER_UNIT - 1);
     }
 
     /**
@@ -57,7 +70,7 @@ public class BitArray {
             throw new IllegalArgumentException("Negative length for BitArray");
         }
         this.length = length;
-        repn = new byte[(length + BITS_PER_UNIT - 1)/BITS_PER_UNIT];
+        words = new long[wordCount(length)];
     }
 
 
@@ -69,20 +82,22 @@ public class BitArray {
      * 8*a.length <= length.
      */
     public BitArray(byte[] a) throws IllegalArgumentException {
-        length = a.length * BITS_PER_UNIT;
-        int repLength = (length + BITS_PER_UNIT - 1) / BITS_PER_UNIT;
-        int unusedBits = repLength * BITS_PER_UNIT - length;
-        byte bitMask = (byte) (0xFF << unusedBits);
-
-        /*
-         normalize the representation:
-          1. discard extra bytes
-          2. zero out extra bits in the last byte
-         */
-        repn = new byte[repLength];
-        System.arraycopy(a, 0, repn, 0, repLength);
-        if (repLength > 0) {
-            repn[repLength - 1] &= bitMask;
+        this(ByteBuffer.wrap(a));
+    }
+
+    /**
+     * Creates a BitArray from the remaining bytes of the buffer, buffer position is not changed.
+     * Used on memory mapped files, so bytes are copied a word at a time.
+     */
+    public BitArray(ByteBuffer buffer) {
+        ByteBuffer bytes = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        length = bytes.remaining() * BITS_PER_UNIT;
+        words = new long[wordCount(length)];
+        LongBuffer longs = bytes.asLongBuffer();
+        int fullWords = longs.remaining();
+        longs.get(words, 0, fullWords);
+        for (int i = fullWords * UNITS_PER_WORD; i < bytes.limit(); i++) {
+            words[fullWords] |= (bytes.get(i) & 0xffL) << (i % UNITS_PER_WORD * BITS_PER_UNIT);
         }
     }
 
@@ -91,8 +106,7 @@ public class BitArray {
      * of Booleans.
      */
     public BitArray(boolean[] bits) {
-        length = bits.length;
-        repn = new byte[(length + 7)/8];
+        this(bits.length);
 
         for (int i=0; i < length; i++) {
             set(i, bits[i]);
@@ -105,37 +119,23 @@ public class BitArray {
      */
     private BitArray(BitArray ba) {
         length = ba.length;
-        repn = ba.repn.clone();
+        words = Arrays.copyOf(ba.words, wordCount(length));
     }
 
     /**
      *  Returns the indexed bit in this BitArray.
      */
     public boolean get(int index) throws ArrayIndexOutOfBoundsException {
-        if (index < 0 || index >= length) {
-            throw new ArrayIndexOutOfBoundsException(String.valueOf(index));
-        }
-        return (repn[subscript(index)] & positionBigEndian(index)) != 0;
+        checkIndex(index);
+        return bit(littleEndianIndex(index));
     }
 
     /**
      *  Returns the reversed indexed bit in this main.java.ru.BitArray.
      */
     public boolean getRev(int index) throws ArrayIndexOutOfBoundsException {
-        if (index < 0 || index >= length) {
-            throw new ArrayIndexOutOfBoundsException(String.valueOf(index));
-        }
-        boolean[] bitArray = new boolean[Byte.SIZE];
-        for (int i = 0; i<Byte.SIZE; i++) {
-            bitArray[Byte.SIZE-1-i] = (repn[subscript(index)] >> i & 0x1) != 0x0;
-        }
-        return getBit(bitArray, index, Endian.LittleEndian);
-    }
-
-    private boolean getBit(boolean[] byteImpl, int index, Endian e) {
-        return byteImpl[e.equals(Endian.BigEndian) ?
-                index % BITS_PER_UNIT :
-                Byte.SIZE - 1 - index % BITS_PER_UNIT];
+        checkIndex(index);
+        return bit(index);
     }
 
     /**
@@ -143,12 +143,73 @@ public class BitArray {
      */
     public void set(int index, boolean value)
             throws ArrayIndexOutOfBoundsException {
-        if (index < 0 || index >= length) {
-            throw new ArrayIndexOutOfBoundsException(String.valueOf(index));
+        checkIndex(index);
+        int idx = littleEndianIndex(index);
+        long mask = 1L << idx;
+        words[idx / BITS_PER_WORD] = value ? words[idx / BITS_PER_WORD] | mask : words[idx / BITS_PER_WORD] & ~mask;
+    }
+
+    /**
+     *  Returns 'n' (0 to 64) bits starting at bit 'offset', bits past the end of the array are zeros.
+     *  LittleEndian: bit 'offset' (in getRev order) is the lowest bit of the result.
+     *  BigEndian: bit 'offset' (in get order) is the highest of 'n' bits of the result.
+     */
+    public long peekBits(int offset, int n, Endian order) {
+        if (offset < 0 || n < 0 || n > BITS_PER_WORD) {
+            throw new IllegalArgumentException("Can't read " + n + " bits at " + offset);
+        }
+        return order == Endian.LittleEndian ? peekLittleEndian(offset, n) : peekBigEndian(offset, n);
+    }
+
+    /**
+     *  Same as peekBits, 'offset' is moved past the read bits.
+     */
+    public long readBits(TlkFile.Wrap offset, int n, Endian order) {
+        long bits = peekBits(offset.getValue(), n, order);
+        offset.setValue(offset.getValue() + n);
+        return bits;
+    }
+
+    /**
+     *  Appends 'len' (0 to 64) bits of 'code' at the end of the array, growing it.
+     *  LittleEndian: bit 0 of the code goes first, that's how Huffman Codes are stored in TLK data.
+     *  BigEndian: bit 'len' - 1 of the code goes first.
+     *  Bits appended in different orders only line up at byte boundaries.
+     */
+    public void appendBits(long code, int len, Endian order) {
+        if (len < 0 || len > BITS_PER_WORD) {
+            throw new IllegalArgumentException("Can't append " + len + " bits");
+        }
+        ensureCapacity(length + len);
+        if (order == Endian.BigEndian) {
+            for (int i = len - 1; i >= 0; i--) {
+                set(length++, (code >>> i & 1) != 0);
+            }
+            return;
+        }
+        if (len == 0) {
+            return;
+        }
+        if (len < BITS_PER_WORD) {
+            code &= (1L << len) - 1;
+        }
+        int idx = length / BITS_PER_WORD;
+        int shift = length % BITS_PER_WORD;
+        words[idx] |= code << shift;
+        if (shift + len > BITS_PER_WORD) {
+            words[idx + 1] |= code >>> (BITS_PER_WORD - shift);
+        }
+        length += len;
+    }
+
+    /**
+     *  Makes room for 'capacity' bits, so appending up to it doesn't copy the array.
+     */
+    public void ensureCapacity(int capacity) {
+        int count = wordCount(capacity);
+        if (count > words.length) {
+            words = Arrays.copyOf(words, Math.max(count, words.length * 2));
         }
-        int idx = subscript(index);
-        int bit = positionBigEndian(index);
-        repn[idx] = value ? (byte) (repn[idx] | bit) : (byte) (repn[idx] & ~bit);
     }
 
     /**
@@ -168,7 +229,14 @@ public class BitArray {
      * is not a multiple of 8.)
      */
     public byte[] toByteArray() {
-        return repn.clone();
+        byte[] bytes = new byte[(length + BITS_PER_UNIT - 1) / BITS_PER_UNIT];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int fullWords = bytes.length / UNITS_PER_WORD;
+        buffer.asLongBuffer().put(words, 0, fullWords);
+        for (int i = fullWords * UNITS_PER_WORD; i < bytes.length; i++) {
+            bytes[i] = byteAt(i);
+        }
+        return bytes;
     }
 
     public boolean equals(Object obj) {
@@ -179,7 +247,15 @@ public class BitArray {
             return false;
         }
         BitArray ba = (BitArray) obj;
-        return (ba.length == length) && IntStream.range(0, repn.length).noneMatch(i -> repn[i] != ba.repn[i]);
+        if (ba.length != length) {
+            return false;
+        }
+        for (int i = 0; i < wordCount(length); i++) {
+            if (words[i] != ba.words[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -202,8 +278,8 @@ public class BitArray {
     public int hashCode() {
         int hashCode = 0;
 
-        for (byte b : repn) {
-            hashCode = 31 * hashCode + b;
+        for (int i = 0; i < byteCount(); i++) {
+            hashCode = 31 * hashCode + byteAt(i);
         }
         return hashCode ^ length;
     }
@@ -214,6 +290,58 @@ public class BitArray {
         return new BitArray(this);
     }
 
+    private void checkIndex(int index) {
+        if (index < 0 || index >= length) {
+            throw new ArrayIndexOutOfBoundsException(String.valueOf(index));
+        }
+    }
+
+    private boolean bit(int idx) {
+        return (words[idx / BITS_PER_WORD] >>> idx & 1) != 0;
+    }
+
+    private long word(int idx) {
+        return idx < words.length ? words[idx] : 0;
+    }
+
+    private int byteCount() {
+        return (length + BITS_PER_UNIT - 1) / BITS_PER_UNIT;
+    }
+
+    private byte byteAt(int idx) {
+        return (byte) (words[idx / UNITS_PER_WORD] >>> (idx % UNITS_PER_WORD * BITS_PER_UNIT));
+    }
+
+    private long peekLittleEndian(int offset, int n) {
+        if (n == 0) {
+            return 0;
+        }
+        int idx = offset / BITS_PER_WORD;
+        int shift = offset % BITS_PER_WORD;
+        long bits = word(idx) >>> shift;
+        if (shift != 0) {
+            bits |= word(idx + 1) << (BITS_PER_WORD - shift);
+        }
+        return n == BITS_PER_WORD ? bits : bits & ((1L << n) - 1);
+    }
+
+    /**
+     * Reads the whole bytes around requested bits and reverses their order,
+     * so the first bit becomes the most significant one.
+     */
+    private long peekBigEndian(int offset, int n) {
+        if (n == 0) {
+            return 0;
+        }
+        int shift = offset % BITS_PER_UNIT;
+        if (shift + n > BITS_PER_WORD) {
+            int first = Integer.SIZE;
+            return peekBigEndian(offset, first) << (n - first) | peekBigEndian(offset + first, n - first);
+        }
+        long bytes = Long.reverseBytes(peekLittleEndian(offset - shift, BITS_PER_WORD));
+        return bytes << shift >>> (BITS_PER_WORD - n);
+    }
+
     private static final byte[][] NYBBLE = {
             { (byte)'0',(byte)'0',(byte)'0',(byte)'0'},
             { (byte)'0',(byte)'0',(byte)'0',(byte)'1'},
@@ -241,14 +369,14 @@ public class BitArray {
     public String toString() {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-        for (int i = 0; i < repn.length - 1; i++) {
-            out.write(NYBBLE[(repn[i] >> 4) & 0x0F], 0, 4);
-            out.write(NYBBLE[repn[i] & 0x0F], 0, 4);
+        for (int i = 0; i < byteCount() - 1; i++) {
+            out.write(NYBBLE[(byteAt(i) >> 4) & 0x0F], 0, 4);
+            out.write(NYBBLE[byteAt(i) & 0x0F], 0, 4);
             out.write(i % BYTES_PER_LINE == BYTES_PER_LINE - 1 ? '\n' : ' ');
         }
 
-        // in last byte of repn, use only the valid bits
-        for (int i = BITS_PER_UNIT * (repn.length - 1); i < length; i++) {
+        // in last byte, use only the valid bits
+        for (int i = BITS_PER_UNIT * (byteCount() - 1); i < length; i++) {
             out.write(get(i) ? '1' : '0');
         }
         return out.toString();
@@ -257,7 +385,7 @@ public class BitArray {
     public BitArray truncate() {
         for (int i=length-1; i>=0; i--) {
             if (get(i)) {
-                return new BitArray(Arrays.copyOf(repn, (i + BITS_PER_UNIT)/BITS_PER_UNIT));
+                return new BitArray(Arrays.copyOf(toByteArray(), (i + BITS_PER_UNIT)/BITS_PER_UNIT));
             }
         }
         return new BitArray(1);
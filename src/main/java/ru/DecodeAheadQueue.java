@@ -0,0 +1,86 @@
+package ru;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntFunction;
+
+/** <summary>
+ *      Decodes data of Entries 0..count-1 in order on a producer thread and hands it over through a bounded queue,
+ *      so decoding overlaps with writing while at most 'capacity' decoded strings are waiting to be written.
+ * </summary>
+ * <remarks>
+ *      Data has to be taken in the order of Entries by a single consumer.
+ *      The producer stops when the queue is closed, even if not everything was taken.
+ * </remarks>
+ */
+class DecodeAheadQueue implements Closeable {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /** stands for null data in the queue, compared by identity */
+    private static final String NO_DATA = new String();
+
+    private final BlockingQueue<String> queue;
+    private final Thread producer;
+    private volatile Throwable error;
+
+    /** <param name="count">number of Entries</param>
+     *  <param name="decoder">returns data of the Entry with given index or null if it has no data</param>
+     *  <param name="capacity">maximum number of decoded strings waiting in the queue</param> */
+    DecodeAheadQueue(int count, IntFunction<String> decoder, int capacity) {
+        queue = new ArrayBlockingQueue<>(capacity);
+        producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++) {
+                    String data = decoder.apply(i);
+                    queue.put(data == null ? NO_DATA : data);
+                }
+            } catch (InterruptedException e) {
+                /* closed by the consumer */
+            } catch (Throwable t) {
+                error = t;
+                /* wakes up the consumer, it checks the error first */
+                queue.offer(NO_DATA);
+            }
+        }, "tlk-decode-ahead");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /** <summary>
+     *      Returns data of the next Entry, waiting for the producer if it isn't decoded yet.
+     * </summary>
+     * <returns>decoded String or null if the Entry has no data</returns>
+     */
+    String take() throws IOException {
+        String data;
+        try {
+            data = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for decoded data");
+        }
+        if (error != null) {
+            throw new IOException("Decoding failed", error);
+        }
+        return data == NO_DATA ? null : data;
+    }
+
+    /** <summary>
+     *      Stops the producer and waits for it, so everything it counted is visible after close.
+     * </summary>
+     */
+    @Override
+    public void close() throws IOException {
+        producer.interrupt();
+        try {
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while stopping the decoder thread");
+        }
+    }
+}
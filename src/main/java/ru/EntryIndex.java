@@ -0,0 +1,60 @@
+package ru;
+
+import java.util.Arrays;
+
+/** <summary>
+ *      Open-addressing hash table from String ID to the index of the first Entry with that ID,
+ *      kept in two int arrays, so lookups don't box IDs or chase Map entries.
+ * </summary>
+ * <remarks>
+ *      Capacity is a power of two at least twice the number of Entries, collisions are resolved by linear probing.
+ * </remarks>
+ */
+class EntryIndex {
+
+    private static final int EMPTY = -1;
+
+    private final int[] keys;
+    /** index of the Entry with the ID in keys, EMPTY for free slots */
+    private final int[] entries;
+    private final int mask;
+
+    /** <summary>
+     *      Indexes Entries from 'from' (inclusive) to 'to' (exclusive), the first Entry wins for repeated IDs.
+     * </summary>
+     */
+    EntryIndex(int[] stringIds, int from, int to) {
+        int capacity = Integer.highestOneBit(Math.max(2, (to - from) * 2 - 1)) << 1;
+        keys = new int[capacity];
+        entries = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(entries, EMPTY);
+        for (int i = from; i < to; i++) {
+            int slot = slotOf(stringIds[i]);
+            if (entries[slot] == EMPTY) {
+                keys[slot] = stringIds[i];
+                entries[slot] = i;
+            }
+        }
+    }
+
+    /** <returns>index of the first Entry with given String ID or -1 if there's no such ID</returns> */
+    int get(int stringId) {
+        return entries[slotOf(stringId)];
+    }
+
+    /** <returns>slot holding given ID or the free slot it would be put in</returns> */
+    private int slotOf(int stringId) {
+        int slot = mix(stringId) & mask;
+        while (entries[slot] != EMPTY && keys[slot] != stringId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /** String IDs are mostly consecutive, multiplying spreads them over the whole table */
+    private static int mix(int stringId) {
+        int h = stringId * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -1,5 +1,8 @@
 package ru;
 
+import javafx.concurrent.Task;
+import javafx.concurrent.WorkerStateEvent;
+import javafx.event.EventHandler;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.ProgressBar;
@@ -9,12 +12,11 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import org.apache.commons.io.FilenameUtils;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.stream.XMLStreamException;
 import java.io.File;
-import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
 @NoArgsConstructor
 @Getter @Setter
@@ -67,14 +69,31 @@ public class FxmlController {
         }
     }
 
+    private ConversionTask tlkToXmlTask;
+
+    /** <summary>
+     *      Starts TLK to XML export in background, pressing the button again while it runs cancels it.
+     * </summary>
+     */
     @FXML
-    private void startExportTlkToXml() throws IOException, XMLStreamException {
-        statusTlkToXml.setText("in progress");
-        progressBarTlkToXml.setProgress(0.0);
-        TlkFile tf = new TlkFile();
-        tf.loadTlkData(textFieldInputPathTlkToXml.getText(), true);
-        tf.storeToFile(textFieldIOutputPathTlkToXml.getText(), FileFormat.XML, this);
-        statusTlkToXml.setText("DONE");
+    private void startExportTlkToXml() {
+        if (tlkToXmlTask != null && tlkToXmlTask.isRunning()) {
+            tlkToXmlTask.cancel();
+            return;
+        }
+        String input = textFieldInputPathTlkToXml.getText();
+        String output = textFieldIOutputPathTlkToXml.getText();
+        tlkToXmlTask = new ConversionTask(ProgressListener.STAGE_DECODE, ProgressListener.STAGE_BIND, ProgressListener.STAGE_WRITE) {
+            @Override
+            protected Void call() throws Exception {
+                TlkFile tf = new TlkFile();
+                tf.setProgressListener(this);
+                tf.loadTlkData(input, true);
+                tf.storeToFile(output, FileFormat.XML);
+                return null;
+            }
+        };
+        start(tlkToXmlTask, startTlkToXml, progressBarTlkToXml, statusTlkToXml);
     }
 
     public File inputXmlFile;
@@ -119,14 +138,107 @@ public class FxmlController {
         textFieldOutputChosenXmlToTlk = true;
     }
 
+    private ConversionTask xmlToTlkTask;
+
+    /** <summary>
+     *      Starts XML to TLK compression in background, pressing the button again while it runs cancels it.
+     * </summary>
+     */
     @FXML
-    private void startExportXmlToTlk() throws IOException, ParserConfigurationException, SAXException {
-        statusXmlToTlk.setText("in progress");
-        progressBarXmlToTlk.setProgress(0.0);
-        HuffmanCompression hc = new HuffmanCompression();
-        hc.loadInputData(textFieldInputPathXmlToTlk.getText(), FileFormat.XML, true);
-        hc.saveToTlkFile(textFieldIOutputPathXmlToTlk.getText(), true);
-        statusXmlToTlk.setText("DONE");
+    private void startExportXmlToTlk() {
+        if (xmlToTlkTask != null && xmlToTlkTask.isRunning()) {
+            xmlToTlkTask.cancel();
+            return;
+        }
+        String input = textFieldInputPathXmlToTlk.getText();
+        String output = textFieldIOutputPathXmlToTlk.getText();
+        xmlToTlkTask = new ConversionTask(ProgressListener.STAGE_READ, ProgressListener.STAGE_ENCODE) {
+            @Override
+            protected Void call() throws Exception {
+                HuffmanCompression hc = new HuffmanCompression();
+                hc.setProgressListener(this);
+                hc.loadInputData(input, FileFormat.XML, true);
+                hc.saveToTlkFile(output, true);
+                return null;
+            }
+        };
+        start(xmlToTlkTask, startXmlToTlk, progressBarXmlToTlk, statusXmlToTlk);
+    }
+
+    /** <summary>
+     *      Binds task to the controls of its tab and runs it on a daemon thread.
+     *      While the task runs its button cancels it.
+     * </summary>
+     */
+    private static void start(ConversionTask task, Button button, ProgressBar progressBar, TextField status) {
+        String buttonText = button.getText();
+        button.setText("CANCEL");
+        progressBar.progressProperty().bind(task.progressProperty());
+        status.textProperty().bind(task.messageProperty());
+
+        EventHandler<WorkerStateEvent> finished = event -> {
+            button.setText(buttonText);
+            progressBar.progressProperty().unbind();
+            status.textProperty().unbind();
+            switch (task.getState()) {
+                case SUCCEEDED:
+                    progressBar.setProgress(1.0);
+                    status.setText("DONE");
+                    break;
+                case CANCELLED:
+                    progressBar.setProgress(0.0);
+                    status.setText("CANCELLED");
+                    break;
+                default:
+                    status.setText("FAILED");
+                    task.getException().printStackTrace();
+            }
+        };
+        task.setOnSucceeded(finished);
+        task.setOnCancelled(finished);
+        task.setOnFailed(finished);
+
+        Thread thread = new Thread(task, "conversion");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** <summary>
+     *      Background conversion reporting progress of its stages as a single progress value.
+     *      Every stage takes an equal part of the progress bar, message shows stage and its throughput.
+     *      Cancellation is checked on every (throttled) progress report.
+     * </summary>
+     */
+    private abstract static class ConversionTask extends Task<Void> implements ProgressListener {
+        private final List<String> stages;
+        private String currentStage;
+        private long stageStart;
+
+        ConversionTask(String... stages) {
+            this.stages = Arrays.asList(stages);
+            updateMessage("in progress");
+        }
+
+        @Override
+        public void onProgress(String stage, long done, long total) {
+            if (isCancelled()) {
+                throw new CancellationException();
+            }
+            long now = System.nanoTime();
+            if (!stage.equals(currentStage)) {
+                currentStage = stage;
+                stageStart = now;
+            }
+            int index = stages.indexOf(stage);
+            if (index < 0 || total <= 0) {
+                return;
+            }
+            double stageProgress = (double) done / total;
+            updateProgress(index + stageProgress, stages.size());
+
+            long elapsedMillis = Math.max((now - stageStart) / 1_000_000, 1);
+            updateMessage(String.format("%s %d%% (%d/s)", stage, (int) (stageProgress * 100), done * 1000 / elapsedMillis));
+        }
     }
 
 }
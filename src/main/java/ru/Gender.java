@@ -0,0 +1,10 @@
+package ru;
+
+/** <summary>
+ *      Section of TLK Entries: male Entries come first (entry1Count), female ones follow them (entry2Count).
+ * </summary>
+ */
+public enum Gender {
+    MALE,
+    FEMALE
+}
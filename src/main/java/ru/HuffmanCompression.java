@@ -1,16 +1,12 @@
 package ru;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.File;
-import java.io.FileOutputStream;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
@@ -18,14 +14,28 @@ import java.util.*;
 class HuffmanCompression {
     private String inputFileVersion = "1.0.0.0";
     private final List<TlkEntry> inputData = new LinkedList<>();
-    private final Map<Character, Integer> frequencyCount = new HashMap<>();
-    private final List<HuffmanNode> huffmanTree = new LinkedList<>();
-    private final Map<Character, BitArray> huffmanCodes = new HashMap<>();
+    private final int[] frequencyCount = new int[Character.MAX_VALUE + 1];
+    private HuffmanNode huffmanTree;
+    /* Huffman Code of every character, bit 0 is the first bit of the code (the one read at the root) */
+    private final long[] codes = new long[Character.MAX_VALUE + 1];
+    private final byte[] codeLengths = new byte[Character.MAX_VALUE + 1];
+    /* receives throttled progress of reading and encoding */
+    private ProgressListener progressListener = ProgressListener.NONE;
+    /* receives stage timings and counters of reading and saving */
+    private MetricsListener metricsListener = MetricsListener.NONE;
+    /* strings which are duplicates or suffixes of other strings point into their data instead of being written again */
+    private boolean suffixSharing;
 
     private static class TlkEntry implements Comparable {
         public int stringID;
         public int position;
         public String data;
+        /* entry whose data ends with data of this one, null if this entry's data is written */
+        public TlkEntry sharedWith;
+        /* index of the character of sharedWith data this entry starts at */
+        public int startChar;
+        /* bit offset of written data */
+        public int offset;
 
         public TlkEntry(int stringID, int position, String data) {
             this.stringID = stringID;
@@ -40,6 +50,21 @@ class HuffmanCompression {
 
     }
 
+    private static class SortKey implements Comparable<SortKey> {
+        final String key;
+        final TlkEntry entry;
+
+        SortKey(String key, TlkEntry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(SortKey o) {
+            return key.compareTo(o.key);
+        }
+    }
+
     private static class HuffmanNode {
         public char data;
         public int frequencyCount;
@@ -59,6 +84,24 @@ class HuffmanCompression {
         }
     }
 
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public void setMetricsListener(MetricsListener metricsListener) {
+        this.metricsListener = metricsListener;
+    }
+
+    /** <summary>
+     *      Enables sharing of data: a string equal to another string or to the end of it
+     *      is not written, its Entry points into the data of the longer string.
+     *      Should be set before LoadInputData, Huffman Tree is built from the data that is actually written.
+     * </summary>
+     */
+    public void setSuffixSharing(boolean suffixSharing) {
+        this.suffixSharing = suffixSharing;
+    }
+
     /** <summary>
      *      Loads a file into memory and prepares for compressing it to TLK
      * </summary>
@@ -66,11 +109,22 @@ class HuffmanCompression {
      * <param name="ff"></param>
      * <param name="debugVersion"></param>
      */
-    public void loadInputData(String fileName, FileFormat ff, boolean debugVersion) throws IOException, ParserConfigurationException, SAXException {
+    public void loadInputData(String fileName, FileFormat ff, boolean debugVersion) throws IOException, XMLStreamException {
+        PipelineMetrics metrics = new PipelineMetrics(PipelineMetrics.OP_LOAD_INPUT, fileName);
         inputData.clear();
+        Arrays.fill(frequencyCount, 0);
         LoadXmlInputData(fileName, debugVersion);
+        metrics.endStage(PipelineMetrics.STAGE_READ);
+        metrics.count(PipelineMetrics.BYTES_READ, Files.size(Paths.get(fileName)));
+        metrics.count(PipelineMetrics.STRINGS_READ, inputData.size());
         Collections.sort(inputData);
-        PrepareHuffmanCoding();
+        metrics.endStage(PipelineMetrics.STAGE_SORT);
+        if (suffixSharing) {
+            metrics.count(PipelineMetrics.SHARED_STRINGS, shareSuffixes());
+            metrics.endStage(PipelineMetrics.STAGE_SUFFIX_SHARING);
+        }
+        PrepareHuffmanCoding(metrics);
+        metrics.finish(metricsListener);
     }
 
     /** <summary>
@@ -83,40 +137,214 @@ class HuffmanCompression {
      *  <param name="isPC"></param>
      */
     public void saveToTlkFile(String fileName, boolean isPC) throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics(PipelineMetrics.OP_SAVE_TLK, fileName);
         Files.deleteIfExists(Paths.get(fileName));
 
         /* converts Huffmann Tree to binary form */
-        List<Integer> treeBuffer = ConvertHuffmanTreeToBuffer();
+        int[] treeBuffer = ConvertHuffmanTreeToBuffer();
+        metrics.endStage(PipelineMetrics.STAGE_TREE_BUFFER);
 
         /* preparing data and entries for writing to file
-         * entries list consists of pairs <String ID, Offset> */
-        List<BitArray> binaryData = new LinkedList<>();
-        Map<Integer, Integer> entries1 = new HashMap<>();
-        Map<Integer, Integer> entries2 = new HashMap<>();
-        int offset = 0;
+         * entries list consists of pairs <String ID, Offset>, kept in the order of positions */
+        long expectedBits = 0;
+        for (int c = 0; c < frequencyCount.length; c++) {
+            expectedBits += (long) frequencyCount[c] * codeLengths[c];
+        }
+        BitArray binaryData = new BitArray(0);
+        binaryData.ensureCapacity((int) expectedBits);
+        Map<Integer, Integer> entries1 = new LinkedHashMap<>();
+        Map<Integer, Integer> entries2 = new LinkedHashMap<>();
+        ProgressReporter progress = new ProgressReporter(progressListener, ProgressListener.STAGE_ENCODE, inputData.size());
+        int done = 0;
+
+        for (TlkEntry entry : inputData) {
+            progress.update(done++);
+            if (entry.stringID < 0 || entry.sharedWith != null) {
+                continue;
+            }
+            entry.offset = binaryData.length();
+
+            /* for every character in a string, put it's binary code into data array */
+            for (int i = 0; i < entry.data.length(); i++) {
+                char c = entry.data.charAt(i);
+                binaryData.appendBits(codes[c], codeLengths[c], Endian.LittleEndian);
+            }
+        }
+        progress.done();
+        metrics.count(PipelineMetrics.BITS_PROCESSED, binaryData.length());
+        metrics.endStage(PipelineMetrics.STAGE_BIT_PACKING);
 
+        /* shared entries point at the character they start at, in the data of the entry they share */
         for (TlkEntry entry : inputData) {
             if (entry.stringID < 0) {
-                if (!entries1.containsKey(entry.stringID)) {
-                    entries1.put(entry.stringID, Integer.parseInt(entry.data));
-                } else {
-                    entries2.put(entry.stringID, Integer.parseInt(entry.data));
-                }
+                putEntry(entries1, entries2, entry.stringID, Integer.parseInt(entry.data));
+                continue;
+            }
+
+            int entryOffset = entry.sharedWith == null ? entry.offset :
+                    entry.sharedWith.offset + codeBits(entry.sharedWith.data, entry.startChar);
+            putEntry(entries1, entries2, entry.stringID, entryOffset);
+        }
+        writeTlkFile(fileName, isPC, entries1, entries2, treeBuffer, binaryData, metrics);
+    }
+
+    /** <summary>
+     *       Stable-layout rebuild: writes TLK file reusing Huffman Tree and data of the original TLK file
+     *       the XML was exported from. Strings equal to the original ones (same position and String ID) keep their data,
+     *       only changed and new strings are encoded and appended after the original data, so the new file differs
+     *       from the original one only in changed Entries and the appended data.
+     *       Data of changed strings stays in the file unused, saveToTlkFile writes it compact again.
+     *       <remarks>
+     *           It isn't faster than saveToTlkFile: reading XML takes most of the time of both,
+     *           and checking that a String is unchanged costs about as much as encoding it.
+     *           If any character isn't in the original Huffman Tree, the file is rebuilt from scratch by saveToTlkFile.
+     *           Suffix sharing only applies to full rebuilds.
+     *       </remarks>
+     *  </summary>
+     *  <param name="originalFileName">TLK file the loaded XML was exported from</param>
+     *  <param name="fileName"></param>
+     *  <param name="isPC"></param>
+     *  <returns>true if the original Huffman Tree was reused, false if the file was rebuilt</returns>
+     */
+    public boolean saveToTlkFileStableLayout(String originalFileName, String fileName, boolean isPC) throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics(PipelineMetrics.OP_SAVE_TLK, fileName);
+        TlkReader r = TlkReader.open(originalFileName);
+        TlkFile.TlkHeader header = r.readHeader();
+        if (header.magic != 7040084) {
+            throw new IOException("Not a PC TLK file: " + originalFileName);
+        }
+        int[] tree = r.readCharacterTree();
+        int[] stringIds = r.readStringIds();
+        int[] bitOffsets = r.readBitOffsets();
+        BitArray originalData = new BitArray(r.data());
+        metrics.count(PipelineMetrics.BYTES_READ, r.size());
+
+        long[] originalCodes = new long[Character.MAX_VALUE + 1];
+        byte[] originalCodeLengths = new byte[Character.MAX_VALUE + 1];
+        if (tree.length > 0) {
+            TraverseCharacterTree(tree, 0, 0L, 0, originalCodes, originalCodeLengths);
+        }
+        for (int c = 0; c < frequencyCount.length; c++) {
+            if (frequencyCount[c] > 0 && originalCodeLengths[c] == 0) {
+                /* a new character, the original Huffman Tree can't encode it */
+                saveToTlkFile(fileName, isPC);
+                return false;
+            }
+        }
+        metrics.endStage(PipelineMetrics.STAGE_READ_ORIGINAL);
+        Files.deleteIfExists(Paths.get(fileName));
+
+        /* new data goes right after the last original string, so strings still follow each other without gaps */
+        int lastOffset = -1;
+        for (int bitOffset : bitOffsets) {
+            lastOffset = Math.max(lastOffset, bitOffset);
+        }
+        int originalLength = 0;
+        if (lastOffset >= 0) {
+            TlkFile.Wrap end = new TlkFile.Wrap(lastOffset);
+            new HuffmanDecoder(tree, originalData).decode(end);
+            originalLength = Math.min(end.getValue(), originalData.length());
+        }
+        BitArray binaryData = new BitArray(0);
+        binaryData.ensureCapacity(originalData.length());
+        for (int pos = 0; pos < originalLength; pos += Long.SIZE) {
+            int n = Math.min(Long.SIZE, originalLength - pos);
+            binaryData.appendBits(originalData.peekBits(pos, n, Endian.LittleEndian), n, Endian.LittleEndian);
+        }
+
+        Map<Integer, Integer> entries1 = new LinkedHashMap<>();
+        Map<Integer, Integer> entries2 = new LinkedHashMap<>();
+        ProgressReporter progress = new ProgressReporter(progressListener, ProgressListener.STAGE_ENCODE, inputData.size());
+        int done = 0;
+        int reused = 0;
+        for (TlkEntry entry : inputData) {
+            progress.update(done++);
+            if (entry.stringID < 0) {
+                putEntry(entries1, entries2, entry.stringID, Integer.parseInt(entry.data));
                 continue;
             }
+            int i = entry.position;
+            if (i >= 0 && i < stringIds.length && stringIds[i] == entry.stringID && bitOffsets[i] >= 0
+                    && isEncodedAt(originalData, bitOffsets[i], entry.data, originalCodes, originalCodeLengths)) {
+                putEntry(entries1, entries2, entry.stringID, bitOffsets[i]);
+                reused++;
+                continue;
+            }
+            putEntry(entries1, entries2, entry.stringID, binaryData.length());
+            for (int c = 0; c < entry.data.length(); c++) {
+                char ch = entry.data.charAt(c);
+                binaryData.appendBits(originalCodes[ch], originalCodeLengths[ch], Endian.LittleEndian);
+            }
+        }
+        progress.done();
+        metrics.count(PipelineMetrics.STRINGS_REUSED, reused);
+        metrics.count(PipelineMetrics.BITS_PROCESSED, binaryData.length() - originalLength);
+        metrics.endStage(PipelineMetrics.STAGE_BIT_PACKING);
+
+        writeTlkFile(fileName, isPC, entries1, entries2, tree, binaryData, metrics);
+        return true;
+    }
 
-            if (!entries1.containsKey(entry.stringID)) {
-                entries1.put(entry.stringID, offset);
+    /** <summary>
+     *       Recursively collects codes of all leaves of Huffman Tree read from TLK file.
+     *   </summary>
+     *   <param name="tree">children IDs of nodes, two per node, leaves are negative</param>
+     *   <param name="nodeId">current node</param>
+     *   <param name="code">bits of the path from the root, the first step is bit 0</param>
+     *   <param name="length">length of the path</param>
+     */
+    private static void TraverseCharacterTree(int[] tree, int nodeId, long code, int length, long[] codes, byte[] codeLengths) {
+        for (int bit = 0; bit < 2; bit++) {
+            int childId = tree[2 * nodeId + bit];
+            long childCode = code | (long) bit << length;
+            if (childId < 0) {
+                char c = HuffmanDecoder.toChar(childId);
+                codes[c] = childCode;
+                codeLengths[c] = (byte) (length + 1);
             } else {
-                entries2.put(entry.stringID, offset);
+                TraverseCharacterTree(tree, childId, childCode, length + 1, codes, codeLengths);
             }
+        }
+    }
 
-            /* for every character in a string, put it's binary code into data array */
-            for (char c : entry.data.toCharArray()) {
-                binaryData.add(huffmanCodes.get(c));
-                offset += huffmanCodes.get(c).length();
+    /** <summary>
+     *       Checks if codes of all characters of 'data' are found in 'bits' starting at 'bitOffset'.
+     *       Data is NULL-terminated and codes are prefix-free, so a match means the whole String is the same.
+     *   </summary>
+     */
+    private static boolean isEncodedAt(BitArray bits, int bitOffset, String data, long[] codes, byte[] codeLengths) {
+        long pos = bitOffset;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            int length = codeLengths[c];
+            if (pos + length > bits.length() || bits.peekBits((int) pos, length, Endian.LittleEndian) != codes[c]) {
+                return false;
             }
+            pos += length;
+        }
+        return true;
+    }
+
+    /** <summary>
+     *       Entries of the first String ID occurrence go to the male section, the next ones to the female section.
+     *  </summary>
+     */
+    private static void putEntry(Map<Integer, Integer> entries1, Map<Integer, Integer> entries2, int stringId, int offset) {
+        if (!entries1.containsKey(stringId)) {
+            entries1.put(stringId, offset);
+        } else {
+            entries2.put(stringId, offset);
         }
+    }
+
+    /** <summary>
+     *       Writes TLK Header, entries of both sections, Huffman Tree and coded data to the file.
+     *  </summary>
+     *  <param name="treeBuffer">children IDs of Huffman Tree nodes, two per node</param>
+     */
+    private void writeTlkFile(String fileName, boolean isPC, Map<Integer, Integer> entries1, Map<Integer, Integer> entries2,
+                              int[] treeBuffer, BitArray binaryData, PipelineMetrics metrics) throws IOException {
+        int offset = binaryData.length();
 
         /* preparing TLK Header */
         int magic = 7040084;
@@ -124,99 +352,141 @@ class HuffmanCompression {
         int min_ver = 2;
         int entry1Count = entries1.size();
         int entry2Count = entries2.size();
-        int treeNodeCount = treeBuffer.size() / 2;
+        int treeNodeCount = treeBuffer.length / 2;
         int dataLength = offset / 8;
         if (offset % 8 > 0) {
             ++dataLength;
         }
 
         /* using LittleEndian for PC architecture and BigEndian for Xbox360 */
-//        MiscUtil.Conversion.EndianBitConverter bitConverter;
-//        if (isPC)
-//            bitConverter = new MiscUtil.Conversion.LittleEndianBitConverter();
-//        else
-//            bitConverter = new MiscUtil.Conversion.BigEndianBitConverter();
-
-        OutputStream bw = new FileOutputStream(fileName);
-
-//        var bw = new MiscUtil.IO.EndianBinaryWriter(bitConverter, File.OpenWrite(fileName));
+        TlkWriter bw = new TlkWriter(entry1Count + entry2Count, treeNodeCount, dataLength,
+                isPC ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
 
         /* writing TLK Header */
-        bw.write(magic);
-        bw.write(ver);
-        bw.write(min_ver);
-        bw.write(entry1Count);
-        bw.write(entry2Count);
-        bw.write(treeNodeCount);
-        bw.write(dataLength);
+        bw.writeHeader(magic, ver, min_ver, entry1Count, entry2Count, treeNodeCount, dataLength);
 
         /* writing entries */
         for (Map.Entry<Integer, Integer> entry : entries1.entrySet()) {
-            bw.write(entry.getKey());
-            bw.write(entry.getValue());
+            bw.writeEntry(entry.getKey(), entry.getValue());
         }
         for (Map.Entry<Integer, Integer> entry : entries2.entrySet()) {
-            bw.write(entry.getKey());
-            bw.write(entry.getValue());
+            bw.writeEntry(entry.getKey(), entry.getValue());
         }
 
         /* writing HuffmanTree */
-        for (int element : treeBuffer) {
-            bw.write(element);
+        for (int i = 0; i < treeNodeCount; i++) {
+            bw.writeNode(treeBuffer[2 * i], treeBuffer[2 * i + 1]);
         }
         /* writing data */
-        byte[] data = BitArrayListToByteArray(binaryData, offset);
-        bw.write(data);
-        bw.close();
+        byte[] data = binaryData.toByteArray();
+        bw.writeData(data);
+        bw.save(fileName);
+        metrics.endStage(PipelineMetrics.STAGE_WRITE);
+        metrics.count(PipelineMetrics.STRINGS_WRITTEN, entry1Count + entry2Count);
+        metrics.count(PipelineMetrics.BYTES_WRITTEN, Files.size(Paths.get(fileName)));
+        metrics.finish(metricsListener);
+    }
+
+    /** <summary>
+     *        Finds strings equal to the end of another string and marks them as shared.
+     *        Strings sorted from their last character make a string and the strings ending with it neighbours:
+     *        if a string is the end of any other string, it's the end of the next one.
+     *        Characters of shared strings aren't written, so they're removed from frequencies.
+     *  </summary>
+     *  <returns>number of shared strings</returns>
+     */
+    private int shareSuffixes() {
+        /* entries are sorted by their reversed data, so the comparison runs on String.compareTo */
+        List<SortKey> sorted = new ArrayList<>();
+        for (TlkEntry entry : inputData) {
+            entry.sharedWith = null;
+            entry.startChar = 0;
+            if (entry.stringID >= 0) {
+                sorted.add(new SortKey(reverse(entry.data), entry));
+            }
+        }
+        Collections.sort(sorted);
+
+        int shared = 0;
+        for (int i = sorted.size() - 2; i >= 0; i--) {
+            TlkEntry entry = sorted.get(i).entry;
+            TlkEntry next = sorted.get(i + 1).entry;
+            if (!next.data.endsWith(entry.data)) {
+                continue;
+            }
+            entry.sharedWith = next.sharedWith != null ? next.sharedWith : next;
+            entry.startChar = entry.sharedWith.data.length() - entry.data.length();
+            for (int c = 0; c < entry.data.length(); c++) {
+                frequencyCount[entry.data.charAt(c)]--;
+            }
+            shared++;
+        }
+        return shared;
+    }
+
+    /** <summary>
+     *        Reverses order of chars, surrogate pairs are reversed as well (unlike StringBuilder.reverse),
+     *        so a string is the end of another one exactly when its reversed string is the beginning.
+     *  </summary>
+     */
+    private static String reverse(String s) {
+        char[] chars = new char[s.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = s.charAt(chars.length - 1 - i);
+        }
+        return new String(chars);
     }
 
     /** <summary>
-     *        Loads data from XML file into memory
+     *        Returns number of bits taken by codes of the first 'charCount' characters of 'data'.
+     *  </summary>
+     */
+    private int codeBits(String data, int charCount) {
+        int bits = 0;
+        for (int i = 0; i < charCount; i++) {
+            bits += codeLengths[data.charAt(i)];
+        }
+        return bits;
+    }
+
+    /** <summary>
+     *        Loads data from XML file into memory.
+     *        XML is streamed element by element and character frequencies are counted in the same pass.
      *  </summary>
      *  <param name="fileName"></param>
      *  <param name="debugVersion"></param>
      */
-    private void LoadXmlInputData(String fileName, boolean debugVersion) throws IOException, SAXException, ParserConfigurationException {
-        // Получение фабрики, чтобы после получить билдер документов.
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        // Получили из фабрики билдер, который парсит XML, создает структуру Document в виде иерархического дерева.
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        // Запарсили XML, создав структуру Document. Теперь у нас есть доступ ко всем элементам, каким нам нужно.
-        Document document = builder.parse(new File(fileName));
-        // Получение списка всех элементов tlkFile внутри корневого элемента (getDocumentElement возвращает ROOT элемент XML файла).
-        NodeList tlkFileElements = document.getDocumentElement().getElementsByTagName("tlkFile");
-        /* read and store TLK Tool version, which was used to create the XML file */
-        String toolVersion = String.valueOf(document.getDocumentElement().getAttributes().getNamedItem("TLKToolVersion").getNodeValue());
-        if (toolVersion != null) {
-            inputFileVersion = toolVersion;
-        }
-
-        // Получение списка всех элементов string внутри корневого элемента.
-        NodeList stringElements = document.getDocumentElement().getElementsByTagName("string");
-        for (int i=0; i< stringElements.getLength(); i++) {
-            int id = 0, position = 0;
-            String data = "";
-            NodeList childNodes = stringElements.item(i).getChildNodes();
-
-            for (int j=0; j<childNodes.getLength(); j++) {
-                if (childNodes.item(j).getNodeName().equals("id")) {
-                    id = Integer.parseInt(childNodes.item(j).getTextContent());
-                } else if (childNodes.item(j).getNodeName().equals("position")) {
-                    position = Integer.parseInt(childNodes.item(j).getTextContent());
-                } else if (childNodes.item(j).getNodeName().equals("data")) {
-                    data = childNodes.item(j).getTextContent();
+    private void LoadXmlInputData(String fileName, boolean debugVersion) throws IOException, XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        long fileSize = Files.size(Paths.get(fileName));
+        try (PositionInputStream in = new PositionInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(fileName))))) {
+            ProgressReporter progress = new ProgressReporter(progressListener, ProgressListener.STAGE_READ, fileSize);
+            XMLStreamReader xr = factory.createXMLStreamReader(in);
+            try {
+                while (xr.hasNext()) {
+                    if (xr.next() != XMLStreamConstants.START_ELEMENT) {
+                        continue;
+                    }
+                    if ("tlkFile".equals(xr.getLocalName())) {
+                        /* read and store TLK Tool version, which was used to create the XML file */
+                        String toolVersion = xr.getAttributeValue(null, "TLKToolVersion");
+                        if (toolVersion != null) {
+                            inputFileVersion = toolVersion;
+                        }
+                    } else if ("string".equals(xr.getLocalName())) {
+                        TlkEntry entry = readStringElement(xr, debugVersion);
+                        inputData.add(entry);
+                        countFrequencies(entry);
+                        progress.update(in.getPosition());
+                    }
                 }
+            } finally {
+                xr.close();
             }
-            data = data.replace("\r\n", "\n");
-            /* every String should be NULL-terminated */
-            if (id >= 0) {
-                data += '\0';
-            }
-            /* only add debug info if we are in debug mode and StringID is positive AND it's localizable */
-            inputData.add(id >= 0 && debugVersion && (id & 0x8000000) != 0x8000000 ?
-                    new TlkEntry(id, position, "(#" + id + ") " + data) :
-                    new TlkEntry(id, position, data)
-            );
+            progress.done();
         }
 
         /* code for XML files created BEFORE v. 1.0.3 */
@@ -228,6 +498,48 @@ class HuffmanCompression {
         }
     }
 
+    /** <summary>
+     *        Reads children of &lt;string&gt; element, reader is left at its end tag.
+     *  </summary>
+     */
+    private static TlkEntry readStringElement(XMLStreamReader xr, boolean debugVersion) throws XMLStreamException {
+        int id = 0, position = 0;
+        String data = "";
+        while (xr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = xr.getLocalName();
+            if (name.equals("id")) {
+                id = Integer.parseInt(xr.getElementText().trim());
+            } else if (name.equals("position")) {
+                position = Integer.parseInt(xr.getElementText().trim());
+            } else if (name.equals("data")) {
+                data = xr.getElementText();
+            } else {
+                skipElement(xr);
+            }
+        }
+        data = data.replace("\r\n", "\n");
+        /* every String should be NULL-terminated */
+        if (id >= 0) {
+            data += '\0';
+        }
+        /* only add debug info if we are in debug mode and StringID is positive AND it's localizable */
+        return id >= 0 && debugVersion && (id & 0x8000000) != 0x8000000 ?
+                new TlkEntry(id, position, "(#" + id + ") " + data) :
+                new TlkEntry(id, position, data);
+    }
+
+    private static void skipElement(XMLStreamReader xr) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = xr.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
     private static boolean compareVersionStrings(String ver1, String ver2, String sign) {
         String[] arr1 = ver1.split("\\.");
         String[] arr2 = ver2.split("\\.");
@@ -297,40 +609,72 @@ class HuffmanCompression {
      *       For every character in text data, a corresponding Huffman Code is prepared.
      *       Source: http://en.wikipedia.org/wiki/Huffman_coding
      *   </summary>
+     *   <param name="metrics"></param>
      */
-    private void PrepareHuffmanCoding() {
-        frequencyCount.clear();
-        for (TlkEntry entry : inputData) {
-            if (entry.stringID < 0) {
-                continue;
-            }
-            for (char c : entry.data.toCharArray()) {
-                if (!frequencyCount.containsKey(c)) {
-                    frequencyCount.put(c, 0);
-                }
-                frequencyCount.put(c, frequencyCount.get(c) + 1);
-            }
-        }
-        frequencyCount.forEach((key, value) -> huffmanTree.add(new HuffmanNode(key, value)));
+    private void PrepareHuffmanCoding(PipelineMetrics metrics) {
         BuildHuffmanTree();
+        metrics.endStage(PipelineMetrics.STAGE_TREE_BUILD);
         BuildCodingArray();
+        metrics.endStage(PipelineMetrics.STAGE_CODE_TABLE);
         // DebugTools.LoadHuffmanTree(_huffmanCodes);
         // DebugTools.PrintLookupTable();
     }
 
     /** <summary>
-     *       Standard implementation of builidng a Huffman Tree
+     *       Counts characters of the entry, entries without data (negative String ID) are skipped.
+     *   </summary>
+     *   <param name="entry"></param>
+     */
+    private void countFrequencies(TlkEntry entry) {
+        if (entry.stringID < 0) {
+            return;
+        }
+        for (int i = 0; i < entry.data.length(); i++) {
+            frequencyCount[entry.data.charAt(i)]++;
+        }
+    }
+
+    /** <summary>
+     *       Builds a Huffman Tree with the two-queue method: leaves sorted by frequency in one queue,
+     *       merged nodes in the other one. Merged nodes are created in non-decreasing frequency order,
+     *       so both queues stay sorted and the two lightest nodes are always at their heads.
+     *       Ties are resolved by lower character first and leaves before merged nodes,
+     *       so the same input always produces the same tree.
      * </summary>
      */
     private void BuildHuffmanTree() {
-        while (huffmanTree.size() > 1) {
-            /* sort Huffman Nodes by frequency */
-            huffmanTree.sort(HuffmanCompression::CompareNodes);
-            HuffmanNode parent = new HuffmanNode(huffmanTree.get(0), huffmanTree.get(1));
-            huffmanTree.remove(0);
-            huffmanTree.remove(0);
-            huffmanTree.add(parent);
+        List<HuffmanNode> sortedLeaves = new ArrayList<>();
+        for (int c = 0; c < frequencyCount.length; c++) {
+            if (frequencyCount[c] > 0) {
+                sortedLeaves.add(new HuffmanNode((char) c, frequencyCount[c]));
+            }
+        }
+        /* sort is stable - equal frequencies stay in character order */
+        sortedLeaves.sort(HuffmanCompression::CompareNodes);
+
+        /* a single leaf as the root would get a 0-bit code and the tree would have no nodes,
+         * it's paired with an unused character, so it gets a 1-bit code */
+        if (sortedLeaves.size() == 1) {
+            char used = sortedLeaves.get(0).data;
+            sortedLeaves.add(0, new HuffmanNode(used == '\0' ? (char) 1 : '\0', 0));
+        }
+
+        Queue<HuffmanNode> leaves = new ArrayDeque<>(sortedLeaves);
+        Queue<HuffmanNode> merged = new ArrayDeque<>();
+        while (leaves.size() + merged.size() > 1) {
+            HuffmanNode left = pollLightest(leaves, merged);
+            HuffmanNode right = pollLightest(leaves, merged);
+            merged.add(new HuffmanNode(left, right));
+        }
+        /* null if there are no strings at all, the tree and the data are empty then */
+        huffmanTree = leaves.isEmpty() ? merged.poll() : leaves.poll();
+    }
+
+    private static HuffmanNode pollLightest(Queue<HuffmanNode> leaves, Queue<HuffmanNode> merged) {
+        if (merged.isEmpty() || !leaves.isEmpty() && CompareNodes(leaves.peek(), merged.peek()) <= 0) {
+            return leaves.poll();
         }
+        return merged.poll();
     }
 
     /** <summary>
@@ -338,37 +682,31 @@ class HuffmanCompression {
      *   </summary>
      */
     private void BuildCodingArray() {
-        /* stores a binary code */
-        List<Boolean> currentCode = new LinkedList<>();
-        HuffmanNode currenNode = huffmanTree.get(0);
-        TraverseHuffmanTree(currenNode, currentCode);
+        Arrays.fill(codeLengths, (byte) 0);
+        HuffmanNode currenNode = huffmanTree;
+        if (currenNode != null) {
+            TraverseHuffmanTree(currenNode, 0L, 0);
+        }
     }
 
     /** <summary>
      *       Recursively traverses Huffman Tree and generates codes
      *   </summary>
      *   <param name="node"></param>
-     *   <param name="code"></param>
+     *   <param name="code">bits of the path from the root, the first step is bit 0</param>
+     *   <param name="length">length of the path</param>
      */
-    private void TraverseHuffmanTree(HuffmanNode node, List<Boolean> code) {
+    private void TraverseHuffmanTree(HuffmanNode node, long code, int length) {
         /* check if both sons are null */
         if (node.left == node.right) {
-            boolean[] arr = new boolean[code.size()];
-            for (int i = 0; i < code.size(); i++) {
-                arr[i] = code.get(i);
-            }
-            BitArray ba = new BitArray(arr);
-            huffmanCodes.put(node.data, ba);
+            codes[node.data] = code;
+            codeLengths[node.data] = (byte) length;
         } else {
             /* adds 0 to the code - process left son*/
-            code.add(false);
-            TraverseHuffmanTree(node.left, code);
-            code.remove(code.size() - 1);
+            TraverseHuffmanTree(node.left, code, length + 1);
 
             /* adds 1 to the code - process right son*/
-            code.add(true);
-            TraverseHuffmanTree(node.right, code);
-            code.remove(code.size() - 1);
+            TraverseHuffmanTree(node.right, code | 1L << length, length + 1);
         }
     }
 
@@ -377,12 +715,15 @@ class HuffmanCompression {
      *   </summary>
      *   <returns></returns>
      */
-    private List<Integer> ConvertHuffmanTreeToBuffer() {
+    private int[] ConvertHuffmanTreeToBuffer() {
+        if (huffmanTree == null) {
+            return new int[0];
+        }
         Queue<HuffmanNode> q = new ArrayDeque<>();
         Map<Integer, HuffmanNode> indices = new HashMap<>();
 
         int index = 0;
-        q.add(huffmanTree.get(0));
+        q.add(huffmanTree);
 
         while (q.size() > 0) {
             HuffmanNode node = q.remove();
@@ -392,7 +733,7 @@ class HuffmanCompression {
                 node.id = -1 - node.data;
 
                 /* that's how it's going to be decoded when parsing TLK file:
-                 * char c = ru.BitConverter.ToChar(ru.BitConverter.GetBytes(0xffff - node.ID), 0); */
+                 * char c = (char) (0xffff - node.id), see HuffmanDecoder.toChar */
             } else {
                 node.id = index++;
                 indices.put(node.id, node);
@@ -403,61 +744,13 @@ class HuffmanCompression {
                 q.add(node.left);
         }
 
-        List<Integer> output = new LinkedList<>();
+        List<Integer> output = new ArrayList<>();
 
         indices.values().forEach(node -> {
             output.add(node.left.id);
             output.add(node.right.id);
         });
-        return output;
-    }
-
-    /** <summary>
-     *       Converts bits in a main.java.ru.BitArray to an array with bytes.
-     *       Such array is ready to be written to a file.
-     *   </summary>
-     *   <param name="bitsList"></param>
-     *   <param name="bitsCount"></param>
-     *   <returns></returns>
-     */
-    private static byte[] BitArrayListToByteArray(List<BitArray> bitsList, int bitsCount) {
-        final int BITSPERBYTE = 8;
-
-        int bytesize = bitsCount / BITSPERBYTE;
-        if (bitsCount % BITSPERBYTE > 0)
-            bytesize++;
-
-        byte[] bytes = new byte[bytesize];
-        int bytepos = 0;
-        int bitsRead = 0;
-        byte value = 0;
-        byte significance = 1;
-
-        for (BitArray bits : bitsList) {
-            int bitpos = 0;
-
-            while (bitpos < bits.length()) {
-                if (bits.get(bitpos)) {
-                    value += significance;
-                }
-                ++bitpos;
-                ++bitsRead;
-                if (bitsRead % BITSPERBYTE == 0) {
-                    bytes[bytepos] = value;
-                    ++bytepos;
-                    value = 0;
-                    significance = 1;
-                    bitsRead = 0;
-                }
-                else {
-                    significance <<= 1;
-                }
-            }
-        }
-        if (bitsRead % BITSPERBYTE != 0) {
-            bytes[bytepos] = value;
-        }
-        return bytes;
+        return output.stream().mapToInt(Integer::intValue).toArray();
     }
 
     /** <summary>
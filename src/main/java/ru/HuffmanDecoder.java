@@ -0,0 +1,287 @@
+package ru;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/** <summary>
+ *      Table-driven decoder for Huffman coded TLK data.
+ *      Huffman Tree loaded from TLK file is used as a flat array of children and a lookup table
+ *      indexed by the next TABLE_BITS bits of the stream. Every code not longer than TABLE_BITS
+ *      is resolved by a single lookup; longer codes continue bit by bit from the node the table points at.
+ *      Coded data is read from BitArray 64 bits at a time, lookups are served from that window.
+ * </summary>
+ */
+class HuffmanDecoder {
+
+    /** number of strings decoded by one fork-join task */
+    private static final int STRINGS_PER_TASK = 512;
+
+    /** number of bits resolved by one table lookup */
+    static final int TABLE_BITS = 10;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    /** children of node n: left one at 2 * n, right one at 2 * n + 1, so the next bit selects the child */
+    private final int[] characterTree;
+
+    /** for every TABLE_BITS-long bit pattern: length of the code it starts with or 0 if the code is longer */
+    private final byte[] codeLengths = new byte[TABLE_SIZE];
+    /** decoded character for resolved patterns */
+    private final char[] symbols = new char[TABLE_SIZE];
+    /** node reached after TABLE_BITS bits for unresolved patterns */
+    private final int[] nextNodes = new int[TABLE_SIZE];
+
+    private final BitArray bits;
+    private final int bitLength;
+
+    /** output buffer of every thread decoding through decode(Wrap), decoders never call each other */
+    private static final ThreadLocal<DecodeBuffer> BUFFERS = ThreadLocal.withInitial(DecodeBuffer::new);
+
+    /** <summary>
+     *      Reusable output of decoding, decoded characters are appended to 'chars'
+     *      and the String is created once, when the NULL terminator is reached.
+     * </summary>
+     */
+    static final class DecodeBuffer {
+        private static final int INITIAL_CAPACITY = 256;
+
+        private char[] chars = new char[INITIAL_CAPACITY];
+        private int length;
+
+        private void append(char c) {
+            if (length == chars.length) {
+                chars = Arrays.copyOf(chars, length * 2);
+            }
+            chars[length++] = c;
+        }
+
+        private String take() {
+            String s = new String(chars, 0, length);
+            length = 0;
+            return s;
+        }
+    }
+
+    /** <summary>
+     *      Prepares lookup tables for the given tree and coded data.
+     * </summary>
+     * <param name="characterTree">pairs of children IDs of Huffman Tree nodes as stored in TLK file, root at index 0</param>
+     * <param name="bits">coded data, bits are read in Endian.LittleEndian order</param>
+     */
+    HuffmanDecoder(int[] characterTree, BitArray bits) {
+        this.characterTree = characterTree;
+        this.bits = bits;
+        this.bitLength = bits.length();
+        /** a file without any strings has no tree nodes, there's nothing to look up then */
+        if (!isEmpty()) {
+            buildTable();
+        }
+    }
+
+    private boolean isEmpty() {
+        return characterTree.length == 0;
+    }
+
+    /** <summary>
+     *      Walks the tree for every possible TABLE_BITS-long pattern (first bit of the stream is bit 0 of the pattern).
+     * </summary>
+     */
+    private void buildTable() {
+        for (int pattern = 0; pattern < TABLE_SIZE; pattern++) {
+            int nodeId = 0;
+            int depth = 0;
+            while (depth < TABLE_BITS) {
+                nodeId = characterTree[2 * nodeId + (pattern >>> depth & 1)];
+                depth++;
+                if (nodeId < 0) {
+                    break;
+                }
+            }
+            if (nodeId < 0) {
+                codeLengths[pattern] = (byte) depth;
+                symbols[pattern] = toChar(nodeId);
+            } else {
+                nextNodes[pattern] = nodeId;
+            }
+        }
+    }
+
+    /** <summary>
+     *      Converts leaf ID to the character it holds.
+     *      Leaves are stored as -1 - c, which is the same as the low 16 bits of 0xffff - ID.
+     * </summary>
+     */
+    static char toChar(int leafId) {
+        return (char) (0xffff - leafId);
+    }
+
+    /** <summary>
+     *      Returns total number of bits in coded data.
+     * </summary>
+     */
+    int bitLength() {
+        return bitLength;
+    }
+
+    /** <summary>
+     *      Decodes a NULL-terminated string starting at 'bitOffset'.
+     *      'bitOffset' is updated with last read bit PLUS ONE (first unread bit).
+     *  </summary>
+     *  <returns>
+     *      decoded String or null if last string's bit code is incomplete or the tree is empty
+     *  </returns>
+     */
+    String decode(TlkFile.Wrap bitOffsetWrap) {
+        return decode(bitOffsetWrap, BUFFERS.get());
+    }
+
+    /** <summary>
+     *      Same as decode(Wrap), characters are collected in the given buffer of the calling worker.
+     *  </summary>
+     */
+    String decode(TlkFile.Wrap bitOffsetWrap, DecodeBuffer out) {
+        out.length = 0;
+        if (isEmpty()) {
+            bitOffsetWrap.setValue(Math.max(bitOffsetWrap.getValue(), bitLength) + 1);
+            return null;
+        }
+        int pos = bitOffsetWrap.getValue();
+        /* next bits of data starting at 'pos', the first one is bit 0; 'available' of them are real data */
+        long window = 0;
+        int available = 0;
+        while (true) {
+            if (available < TABLE_BITS) {
+                window = bits.peekBits(pos, Long.SIZE, Endian.LittleEndian);
+                available = (int) Math.max(0, Math.min(Long.SIZE, (long) bitLength - pos));
+            }
+            int pattern = (int) window & TABLE_MASK;
+            int len = codeLengths[pattern];
+            char c;
+            if (len > 0 && len <= available) {
+                window >>>= len;
+                available -= len;
+                pos += len;
+                c = symbols[pattern];
+            } else {
+                /* code is longer than the table or runs into the end of data - walk it bit by bit */
+                int nodeId = 0;
+                if (len == 0 && available >= TABLE_BITS) {
+                    nodeId = nextNodes[pattern];
+                    window >>>= TABLE_BITS;
+                    available -= TABLE_BITS;
+                    pos += TABLE_BITS;
+                }
+                while (nodeId >= 0) {
+                    if (available == 0) {
+                        window = bits.peekBits(pos, Long.SIZE, Endian.LittleEndian);
+                        available = (int) Math.max(0, Math.min(Long.SIZE, (long) bitLength - pos));
+                        if (available == 0) {
+                            bitOffsetWrap.setValue(Math.max(pos, bitLength) + 1);
+                            out.length = 0;
+                            return null;
+                        }
+                    }
+                    nodeId = characterTree[2 * nodeId + (int) (window & 1)];
+                    window >>>= 1;
+                    available--;
+                    pos++;
+                }
+                c = toChar(nodeId);
+            }
+            if (c == '\0') {
+                bitOffsetWrap.setValue(pos);
+                return out.take();
+            }
+            out.append(c);
+        }
+    }
+
+    /** <summary>
+     *      Finds which character of the String starting at 'runStart' begins at 'bitOffset'.
+     *      Codes are only walked through, nothing is decoded into characters.
+     *  </summary>
+     *  <returns>
+     *      index of the character or -1 if 'bitOffset' isn't at the beginning of a character of that String
+     *  </returns>
+     */
+    int charIndex(int runStart, int bitOffset) {
+        if (isEmpty()) {
+            return -1;
+        }
+        int pos = runStart;
+        int index = 0;
+        while (pos < bitOffset) {
+            int pattern = (int) bits.peekBits(pos, TABLE_BITS, Endian.LittleEndian);
+            int len = codeLengths[pattern];
+            char c;
+            if (len > 0) {
+                pos += len;
+                c = symbols[pattern];
+            } else {
+                pos += TABLE_BITS;
+                int nodeId = nextNodes[pattern];
+                while (nodeId >= 0 && pos < bitLength) {
+                    nodeId = characterTree[2 * nodeId + (int) bits.peekBits(pos++, 1, Endian.LittleEndian)];
+                }
+                if (nodeId >= 0) {
+                    return -1;
+                }
+                c = toChar(nodeId);
+            }
+            if (c == '\0') {
+                return -1;
+            }
+            index++;
+        }
+        return pos == bitOffset ? index : -1;
+    }
+
+    /** <summary>
+     *      Decodes strings starting at every given offset on ForkJoinPool.
+     *      Decoder keeps no state between calls, so all workers share it.
+     *  </summary>
+     *  <param name="offsets">bit offsets of strings, sorted to keep workers on close parts of data</param>
+     *  <param name="strings">receives decoded strings in the order of 'offsets'</param>
+     *  <returns>number of bits read by all workers</returns>
+     */
+    long decodeAll(int[] offsets, String[] strings) {
+        return ForkJoinPool.commonPool().invoke(new DecodeTask(offsets, strings, 0, offsets.length));
+    }
+
+    private class DecodeTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] offsets;
+        private final String[] strings;
+        private final int from;
+        private final int to;
+
+        DecodeTask(int[] offsets, String[] strings, int from, int to) {
+            this.offsets = offsets;
+            this.strings = strings;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from <= STRINGS_PER_TASK) {
+                long bitCount = 0;
+                TlkFile.Wrap offsetWrap = new TlkFile.Wrap(0);
+                DecodeBuffer buffer = new DecodeBuffer();
+                for (int i = from; i < to; i++) {
+                    offsetWrap.setValue(offsets[i]);
+                    strings[i] = decode(offsetWrap, buffer);
+                    bitCount += Math.min(offsetWrap.getValue(), bitLength) - offsets[i];
+                }
+                return bitCount;
+            }
+            int mid = (from + to) >>> 1;
+            DecodeTask left = new DecodeTask(offsets, strings, from, mid);
+            left.fork();
+            long bitCount = new DecodeTask(offsets, strings, mid, to).compute();
+            return bitCount + left.join();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package ru;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/** <summary>
+ *      Streaming XML writer producing indented output in a single pass.
+ *      Elements containing only text stay on one line, every child element or comment
+ *      goes to a new line indented by its depth, empty elements are written as &lt;name/&gt;.
+ * </summary>
+ */
+class IndentingXmlWriter implements Closeable {
+
+    private static final String INDENT = "    ";
+
+    private final Writer out;
+    private final Deque<Element> elements = new ArrayDeque<>();
+    /** start tag of the current element isn't closed yet, so it can still become an empty element */
+    private boolean startTagOpen;
+
+    private static class Element {
+        final String name;
+        boolean hasChildren;
+
+        Element(String name) {
+            this.name = name;
+        }
+    }
+
+    IndentingXmlWriter(Writer out) {
+        this.out = out;
+    }
+
+    void writeStartElement(String name) throws IOException {
+        beginChild();
+        out.write('<');
+        out.write(name);
+        elements.push(new Element(name));
+        startTagOpen = true;
+    }
+
+    void writeAttribute(String name, String value) throws IOException {
+        if (!startTagOpen) {
+            throw new IllegalStateException("Attribute outside of a start tag: " + name);
+        }
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        escape(value, true);
+        out.write('"');
+    }
+
+    void writeCharacters(String text) throws IOException {
+        closeStartTag();
+        escape(text, false);
+    }
+
+    void writeComment(String comment) throws IOException {
+        beginChild();
+        out.write("<!--");
+        out.write(comment);
+        out.write("-->");
+    }
+
+    void writeEndElement() throws IOException {
+        Element element = elements.pop();
+        if (startTagOpen) {
+            out.write("/>");
+            startTagOpen = false;
+            return;
+        }
+        if (element.hasChildren) {
+            newLine(elements.size());
+        }
+        out.write("</");
+        out.write(element.name);
+        out.write('>');
+    }
+
+    /** <summary>
+     *      Closes all open elements and ends the document with a line break.
+     * </summary>
+     */
+    void writeEndDocument() throws IOException {
+        while (!elements.isEmpty()) {
+            writeEndElement();
+        }
+        out.write('\n');
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /** <summary>
+     *      Starts a new line for child markup of the current element.
+     * </summary>
+     */
+    private void beginChild() throws IOException {
+        closeStartTag();
+        Element parent = elements.peek();
+        if (parent != null) {
+            parent.hasChildren = true;
+            newLine(elements.size());
+        }
+    }
+
+    private void closeStartTag() throws IOException {
+        if (startTagOpen) {
+            out.write('>');
+            startTagOpen = false;
+        }
+    }
+
+    private void newLine(int depth) throws IOException {
+        out.write('\n');
+        for (int i = 0; i < depth; i++) {
+            out.write(INDENT);
+        }
+    }
+
+    private void escape(String text, boolean attribute) throws IOException {
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String replacement;
+            switch (text.charAt(i)) {
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '\r':
+                    replacement = "&#13;";
+                    break;
+                case '"':
+                    replacement = attribute ? "&quot;" : null;
+                    break;
+                default:
+                    replacement = null;
+            }
+            if (replacement != null) {
+                out.write(text, start, i - start);
+                out.write(replacement);
+                start = i + 1;
+            }
+        }
+        out.write(text, start, text.length() - start);
+    }
+}
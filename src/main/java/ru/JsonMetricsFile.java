@@ -0,0 +1,46 @@
+package ru;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** <summary>
+ *      Appends metrics of every operation to a summary file, one JSON object per line.
+ *      The same instance may be shared by operations running on different threads.
+ * </summary>
+ * <remarks>
+ *      Metrics never decide whether an operation succeeds: if the file can't be written, the failure is kept,
+ *      nothing more is written and operations go on. The owner of the console reports it from getFailure.
+ * </remarks>
+ */
+public class JsonMetricsFile implements MetricsListener {
+
+    private final String fileName;
+    private IOException failure;
+
+    public JsonMetricsFile(String fileName) {
+        this.fileName = fileName;
+    }
+
+    @Override
+    public synchronized void onMetrics(PipelineMetrics metrics) {
+        if (failure != null) {
+            return;
+        }
+        try (Writer w = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            w.write(metrics.toJson());
+            w.write('\n');
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /** <returns>the first write failure, after which the file was disabled, or null if every write succeeded</returns> */
+    public synchronized IOException getFailure() {
+        return failure;
+    }
+}
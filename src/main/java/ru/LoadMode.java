@@ -0,0 +1,12 @@
+package ru;
+
+public enum LoadMode {
+    /** decode all strings one after another */
+    EAGER,
+    /** decode all strings on all cores */
+    PARALLEL,
+    /** decode strings on first request */
+    LAZY,
+    /** read decoded strings from the index file next to TLK, the index is written by an eager load if it's missing or stale */
+    INDEXED
+}
@@ -0,0 +1,87 @@
+package ru;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** <summary>
+ *      Least recently used cache of decoded strings bounded by total number of cached characters.
+ *      Safe to use from several threads.
+ * </summary>
+ */
+public class LruStringCache implements StringCache {
+
+    private final long maxChars;
+    private final LinkedHashMap<Integer, String> strings = new LinkedHashMap<>(16, 0.75f, true);
+    private long chars;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /** <summary>
+     *      Creates a cache holding at most 'maxChars' characters of all cached strings together.
+     * </summary>
+     * <param name="maxChars"></param>
+     */
+    public LruStringCache(long maxChars) {
+        if (maxChars < 0) {
+            throw new IllegalArgumentException("Negative size of string cache");
+        }
+        this.maxChars = maxChars;
+    }
+
+    @Override
+    public synchronized String get(int bitOffset) {
+        String data = strings.get(bitOffset);
+        if (data == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return data;
+    }
+
+    @Override
+    public synchronized void put(int bitOffset, String data) {
+        /* a String bigger than the whole cache would only flush it */
+        if (data == null || data.length() > maxChars) {
+            return;
+        }
+        String old = strings.put(bitOffset, data);
+        if (old != null) {
+            chars -= old.length();
+        }
+        chars += data.length();
+
+        /* evict least recently used strings until we fit into the limit */
+        Iterator<Map.Entry<Integer, String>> it = strings.entrySet().iterator();
+        while (chars > maxChars && it.hasNext()) {
+            chars -= it.next().getValue().length();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized long getChars() {
+        return chars;
+    }
+
+    public synchronized int size() {
+        return strings.size();
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
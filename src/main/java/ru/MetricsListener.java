@@ -0,0 +1,14 @@
+package ru;
+
+/** <summary>
+ *      Receives timings and counters of a finished TLK operation (loading, exporting, compressing).
+ *      Listener is called once per operation on the thread that ran it.
+ * </summary>
+ */
+@FunctionalInterface
+public interface MetricsListener {
+
+    MetricsListener NONE = metrics -> { };
+
+    void onMetrics(PipelineMetrics metrics);
+}
@@ -0,0 +1,200 @@
+package ru;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** <summary>
+ *      Timings of the stages of a single operation and its counters.
+ *      Stages run one after another, so every stage is timed from the end of the previous one.
+ *      An instance belongs to the thread running the operation and is handed to MetricsListener when it's done.
+ * </summary>
+ */
+public class PipelineMetrics {
+
+    public static final String OP_LOAD_TLK = "loadTlkData";
+    public static final String OP_STORE = "storeToFile";
+    public static final String OP_LOAD_INPUT = "loadInputData";
+    public static final String OP_SAVE_TLK = "saveToTlkFile";
+
+    /* stages of loading a TLK file */
+    public static final String STAGE_HEADER = "header";
+    public static final String STAGE_TREE = "tree";
+    public static final String STAGE_DATA = "data";
+    public static final String STAGE_ENTRIES = "entries";
+    public static final String STAGE_DECODE = "decode";
+    public static final String STAGE_BIND = "bind";
+    public static final String STAGE_CHECKSUM = "checksum";
+    public static final String STAGE_INDEX = "index";
+    /* stages of compressing XML to TLK, frequencies are counted while XML is read */
+    public static final String STAGE_READ = "readAndCount";
+    public static final String STAGE_SORT = "sort";
+    public static final String STAGE_SUFFIX_SHARING = "suffixSharing";
+    public static final String STAGE_TREE_BUILD = "treeBuild";
+    public static final String STAGE_CODE_TABLE = "codeTable";
+    public static final String STAGE_TREE_BUFFER = "treeBuffer";
+    public static final String STAGE_READ_ORIGINAL = "readOriginal";
+    public static final String STAGE_BIT_PACKING = "bitPacking";
+    /* stage shared by exporting and compressing */
+    public static final String STAGE_WRITE = "write";
+
+    public static final String BYTES_READ = "bytesRead";
+    public static final String BYTES_WRITTEN = "bytesWritten";
+    public static final String STRINGS_READ = "stringsRead";
+    public static final String STRINGS_DECODED = "stringsDecoded";
+    public static final String STRINGS_WRITTEN = "stringsWritten";
+    public static final String BITS_PROCESSED = "bitsProcessed";
+    public static final String SUBSTRING_FALLBACKS = "substringFallbacks";
+    public static final String SHARED_STRINGS = "sharedStrings";
+    public static final String STRINGS_REUSED = "stringsReused";
+    public static final String INDEX_WRITE_FAILURES = "indexWriteFailures";
+
+    private final String operation;
+    private final String fileName;
+    private final long startedAt = System.currentTimeMillis();
+    private final long start = System.nanoTime();
+    private long stageStart = start;
+    private long end;
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+    private final Map<String, String> errors = new LinkedHashMap<>();
+
+    PipelineMetrics(String operation, String fileName) {
+        this.operation = operation;
+        this.fileName = fileName;
+    }
+
+    /** <summary>
+     *      Ends the current stage, its time is added to the time already recorded for the same stage.
+     * </summary>
+     */
+    void endStage(String stage) {
+        long now = System.nanoTime();
+        stageNanos.merge(stage, now - stageStart, Long::sum);
+        stageStart = now;
+    }
+
+    void count(String counter, long delta) {
+        counters.merge(counter, delta, Long::sum);
+    }
+
+    /** <summary>
+     *      Counts a failure the operation recovered from and keeps its message under the counter's name.
+     * </summary>
+     */
+    void fail(String counter, Exception e) {
+        count(counter, 1);
+        errors.put(counter, e.toString());
+    }
+
+    /** <summary>
+     *      Stops the clock and passes metrics to the listener.
+     * </summary>
+     */
+    void finish(MetricsListener listener) {
+        end = System.nanoTime();
+        listener.onMetrics(this);
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /** <returns>wall clock time the operation started at, in milliseconds since epoch</returns> */
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getTotalNanos() {
+        return (end != 0 ? end : System.nanoTime()) - start;
+    }
+
+    /** <returns>time of every stage in the order stages ran</returns> */
+    public Map<String, Long> getStageNanos() {
+        return Collections.unmodifiableMap(stageNanos);
+    }
+
+    public Map<String, Long> getCounters() {
+        return Collections.unmodifiableMap(counters);
+    }
+
+    public long getCounter(String counter) {
+        return counters.getOrDefault(counter, 0L);
+    }
+
+    /** <returns>message of the last recovered failure of every counter passed to fail</returns> */
+    public Map<String, String> getErrors() {
+        return Collections.unmodifiableMap(errors);
+    }
+
+    /** <summary>
+     *      Returns metrics as a single line JSON object.
+     * </summary>
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"operation\":");
+        appendString(sb, operation);
+        sb.append(",\"file\":");
+        appendString(sb, fileName);
+        sb.append(",\"startedAt\":").append(startedAt);
+        sb.append(",\"totalNanos\":").append(getTotalNanos());
+        sb.append(",\"stageNanos\":");
+        appendMap(sb, stageNanos);
+        sb.append(",\"counters\":");
+        appendMap(sb, counters);
+        if (!errors.isEmpty()) {
+            sb.append(",\"errors\":{");
+            String separator = "";
+            for (Map.Entry<String, String> entry : errors.entrySet()) {
+                sb.append(separator);
+                appendString(sb, entry.getKey());
+                sb.append(':');
+                appendString(sb, entry.getValue());
+                separator = ",";
+            }
+            sb.append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+
+    private static void appendMap(StringBuilder sb, Map<String, Long> map) {
+        sb.append('{');
+        String separator = "";
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            sb.append(separator);
+            appendString(sb, entry.getKey());
+            sb.append(':').append(entry.getValue());
+            separator = ",";
+        }
+        sb.append('}');
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,24 @@
+package ru;
+
+/** <summary>
+ *      Receives progress of long running TLK operations.
+ *      Listener may throw an unchecked exception (e.g. CancellationException) to stop the operation.
+ * </summary>
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+    String STAGE_DECODE = "decoding";
+    String STAGE_BIND = "binding";
+    String STAGE_WRITE = "writing";
+    String STAGE_READ = "reading";
+    String STAGE_ENCODE = "encoding";
+
+    ProgressListener NONE = (stage, done, total) -> { };
+
+    /** <param name="stage">one of STAGE_* names</param>
+     *  <param name="done">units of work done in this stage</param>
+     *  <param name="total">units of work in this stage</param>
+     */
+    void onProgress(String stage, long done, long total);
+}
@@ -0,0 +1,36 @@
+package ru;
+
+/** <summary>
+ *      Forwards progress of a single stage to ProgressListener not more often than every REPORT_INTERVAL_NANOS,
+ *      so it can be called from the innermost loops.
+ * </summary>
+ */
+class ProgressReporter {
+
+    private static final long REPORT_INTERVAL_NANOS = 100_000_000L;
+
+    private final ProgressListener listener;
+    private final String stage;
+    private final long total;
+    private long lastReport;
+
+    ProgressReporter(ProgressListener listener, String stage, long total) {
+        this.listener = listener;
+        this.stage = stage;
+        this.total = total;
+        this.lastReport = System.nanoTime();
+        listener.onProgress(stage, 0, total);
+    }
+
+    void update(long done) {
+        long now = System.nanoTime();
+        if (now - lastReport >= REPORT_INTERVAL_NANOS) {
+            lastReport = now;
+            listener.onProgress(stage, done, total);
+        }
+    }
+
+    void done() {
+        listener.onProgress(stage, total, total);
+    }
+}
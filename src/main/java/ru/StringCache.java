@@ -0,0 +1,20 @@
+package ru;
+
+/** <summary>
+ *      Cache of decoded strings keyed by bit offset of the string in TLK data.
+ *      Several Entries may point to the same offset, so they share one cached value.
+ * </summary>
+ */
+public interface StringCache {
+
+    /** <returns>cached String or null if it's not cached</returns> */
+    String get(int bitOffset);
+
+    void put(int bitOffset, String data);
+
+    long getHits();
+
+    long getMisses();
+
+    long getEvictions();
+}
@@ -0,0 +1,119 @@
+package ru;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/** <summary>
+ *      Streaming writer of Entries as lines of text, every Entry is written as soon as it's passed,
+ *      so nothing but the output buffer is kept in memory.
+ * </summary>
+ */
+abstract class TextEntryWriter implements Closeable {
+
+    private static final String LINE_END = "\r\n";
+
+    protected final Writer out;
+
+    private TextEntryWriter(Writer out) {
+        this.out = out;
+    }
+
+    /** <summary>
+     *      Creates a writer of the given text format.
+     * </summary>
+     * <param name="ff">TXT or CSV</param>
+     * <param name="out">buffered writer with explicit charset</param>
+     */
+    static TextEntryWriter create(FileFormat ff, Writer out) throws IOException {
+        switch (ff) {
+            case TXT:
+                return new Txt(out);
+            case CSV:
+                return new Csv(out);
+            default:
+                throw new IllegalArgumentException("Not a text format: " + ff);
+        }
+    }
+
+    /** <param name="data">decoded String or null if the Entry has no data</param> */
+    abstract void writeEntry(int stringId, int position, String data) throws IOException;
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /** <summary>
+     *      "ID: data" lines, Entries without data are written as "ID: null".
+     * </summary>
+     */
+    private static class Txt extends TextEntryWriter {
+
+        Txt(Writer out) {
+            super(out);
+        }
+
+        @Override
+        void writeEntry(int stringId, int position, String data) throws IOException {
+            out.write(String.valueOf(stringId));
+            out.write(": ");
+            out.write(String.valueOf(data));
+            out.write(LINE_END);
+        }
+    }
+
+    /** <summary>
+     *      RFC 4180 CSV with "id,position,data" header. Fields containing commas, quotes or line breaks
+     *      are quoted and quotes are doubled. Entries without data (or with data that can't be decoded)
+     *      have no data field at all, so they differ from an empty String ("id,position,") and from any text.
+     * </summary>
+     */
+    private static class Csv extends TextEntryWriter {
+
+        Csv(Writer out) throws IOException {
+            super(out);
+            out.write("id,position,data");
+            out.write(LINE_END);
+        }
+
+        @Override
+        void writeEntry(int stringId, int position, String data) throws IOException {
+            out.write(String.valueOf(stringId));
+            out.write(',');
+            out.write(String.valueOf(position));
+            if (data != null) {
+                out.write(',');
+                writeField(data);
+            }
+            out.write(LINE_END);
+        }
+
+        private void writeField(String field) throws IOException {
+            boolean quote = false;
+            for (int i = 0; i < field.length() && !quote; i++) {
+                char c = field.charAt(i);
+                quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+            }
+            if (!quote) {
+                out.write(field);
+                return;
+            }
+            out.write('"');
+            int start = 0;
+            for (int i = 0; i < field.length(); i++) {
+                if (field.charAt(i) == '"') {
+                    out.write(field, start, i + 1 - start);
+                    out.write('"');
+                    start = i + 1;
+                }
+            }
+            out.write(field, start, field.length() - start);
+            out.write('"');
+        }
+    }
+}
@@ -4,35 +4,51 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+
 import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 public class TlkFile  {
 
     private TlkHeader header;
-    private List<TlkStringRef> stringRefs;
-    private List<HuffmanNode> characterTree;
-    private BitArray bits;
+    /** Entries of both sections kept in parallel arrays, Entry i is stringIds[i], bitOffsets[i] and positions[i] */
+    private int[] stringIds;
+    private int[] bitOffsets;
+    private int[] positions;
+    /** decoded strings, every String decoded from TLK data is stored once */
+    private String[] pool;
+    /** for every Entry: index of its String in the pool and index of the first character of the Entry in that String,
+     *  Entries pointing into the middle of another String share it instead of keeping a copy */
+    private int[] poolIndices;
+    private int[] startChars;
+    /** Huffman Tree nodes, children of node n are at 2 * n (left) and 2 * n + 1 (right) */
+    private int[] characterTree;
+    /** index of the first Entry with the given String ID in the male and in the female section */
+    private EntryIndex maleEntries;
+    private EntryIndex femaleEntries;
+    private HuffmanDecoder decoder;
+    /** index file the strings are read from in indexed mode, null otherwise */
+    private TlkIndex tlkIndex;
+    /** optional cache of decoded strings, when set decoded data isn't bound to Entries in lazy mode */
+    @Getter @Setter
+    private StringCache stringCache;
+    /** receives throttled progress of loading and storing */
+    @Getter @Setter
+    private ProgressListener progressListener = ProgressListener.NONE;
+    /** receives stage timings and counters of every load and store */
+    @Getter @Setter
+    private MetricsListener metricsListener = MetricsListener.NONE;
+    /** when set, strings are decoded on a separate thread while storeToFile writes them,
+     *  together with lazy mode the whole string table is never held in memory */
+    @Getter @Setter
+    private boolean decodeAhead;
 
     /** <summary>
      *      Loads a TLK file into memory.
@@ -40,16 +56,34 @@ public class TlkFile  {
      * <param name="fileName"></param>
      */
     public void loadTlkData(String fileName, boolean isPC) throws IOException {
-        long start = System.nanoTime();
+        loadTlkData(fileName, isPC, LoadMode.EAGER);
+    }
+
+    /** <summary>
+     *      Loads a TLK file into memory.
+     *      In lazy mode only Header, Huffman Tree, Entries and raw bits are kept,
+     *      strings are decoded when they are requested by getString for the first time.
+     *      In parallel mode strings are decoded on ForkJoinPool, result is the same as in eager mode.
+     *      In indexed mode strings are read from the index file next to TLK (fileName + ".idx") on first request
+     *      and nothing is decoded, if the index is missing or doesn't match the TLK file, the file is loaded
+     *      as in eager mode and the index is written again.
+     * </summary>
+     * <param name="fileName"></param>
+     * <param name="mode"></param>
+     */
+    public void loadTlkData(String fileName, boolean isPC, LoadMode mode) throws IOException {
+        PipelineMetrics metrics = new PipelineMetrics(PipelineMetrics.OP_LOAD_TLK, fileName);
         /** **************** STEP ONE ****************
          *          -- load TLK file header --
          *        reading first 28 (4 * 7) bytes
          */
 
         /** using LittleEndian for PC architecture and BigEndian for Xbox360 */
-        PositionInputStream r = baseStreamSeek( 0, fileName);
+        /** the whole file is mapped once, every section is read from the mapping */
+        TlkReader r = TlkReader.open(fileName);
+        metrics.count(PipelineMetrics.BYTES_READ, r.size());
 
-        header = new TlkHeader(r);
+        header = r.readHeader();
         /** read possibly correct ME2 TLK file, but from another platfrom */
         if (header.magic == 1416391424) {
             throw new RuntimeException();
@@ -59,78 +93,330 @@ public class TlkFile  {
             throw new RuntimeException();
         }
         //DebugTools.PrintHeader(Header);
+        metrics.endStage(PipelineMetrics.STAGE_HEADER);
+
+        /** index is valid only for the file with the same size and checksum it was written for */
+        tlkIndex = null;
+        long checksum = 0;
+        if (mode == LoadMode.INDEXED) {
+            checksum = r.checksum();
+            metrics.endStage(PipelineMetrics.STAGE_CHECKSUM);
+            tlkIndex = TlkIndex.open(TlkIndex.indexFileOf(fileName), r.size(), checksum, r.entryCount());
+            metrics.endStage(PipelineMetrics.STAGE_INDEX);
+        }
 
-        /** **************** STEP TWO ****************
-         *  -- read and store Huffman Tree nodes --
-         */
-        /** jumping to the beginning of Huffmann Tree stored in TLK file */
-        long pos = r.getPosition();
-        r = baseStreamSeek( pos + (header.entry1Count + header.entry2Count)*8L, fileName);
-
-        characterTree = new LinkedList<>();
-        for (int i = 0; i < header.treeNodeCount; i++) {
-            characterTree.add(new HuffmanNode(r));
+        if (tlkIndex == null) {
+            /** **************** STEP TWO ****************
+             *  -- read and store Huffman Tree nodes --
+             */
+            /** Huffmann Tree is stored just after TLK Entries */
+            characterTree = r.readCharacterTree();
+            metrics.endStage(PipelineMetrics.STAGE_TREE);
+
+            /** **************** STEP THREE ****************
+             *  -- read all of coded data into memory --
+             */
+            /** data is copied from the mapping into BitArray words and decoded with lookup tables */
+            decoder = new HuffmanDecoder(characterTree, new BitArray(r.data()));
+            metrics.endStage(PipelineMetrics.STAGE_DATA);
+        } else {
+            characterTree = null;
+            decoder = null;
         }
 
-        /** **************** STEP THREE ****************
-         *  -- read all of coded data into memory --
-         */
-        byte[] data = new byte[header.dataLen];
-        r.read(data,0, data.length);
-        /** and store it as raw bits for further processing */
-        bits = new BitArray(data);
-        /** rewind BinaryReader just after the Header
-         * at the beginning of TLK Entries data
-         * */
-        r = baseStreamSeek(pos, fileName);
+        /** read Entries (String ID and offset), the first Entry wins for IDs present in both sections */
+        stringIds = r.readStringIds();
+        bitOffsets = r.readBitOffsets();
+        positions = new int[stringIds.length];
+        poolIndices = new int[stringIds.length];
+        startChars = new int[stringIds.length];
+        for (int i = 0; i < stringIds.length; i++) {
+            positions[i] = i;
+        }
+        maleEntries = new EntryIndex(stringIds, 0, header.entry1Count);
+        femaleEntries = new EntryIndex(stringIds, header.entry1Count, stringIds.length);
+        metrics.endStage(PipelineMetrics.STAGE_ENTRIES);
+        if (mode == LoadMode.LAZY || tlkIndex != null) {
+            /** every Entry gets its own slot, filled when the Entry is requested for the first time */
+            pool = new String[stringIds.length];
+            for (int i = 0; i < poolIndices.length; i++) {
+                poolIndices[i] = i;
+            }
+            metrics.finish(metricsListener);
+            return;
+        }
+        if (mode == LoadMode.PARALLEL) {
+            decodeParallel(metrics);
+            metrics.finish(metricsListener);
+            return;
+        }
 
         /** **************** STEP FOUR ****************
          * -- decode (basing on Huffman Tree) raw bits data into actual strings --
-         * and store them in a Dictionary<int, string> where:
-         *   int: bit offset of the beginning of data (offset starting at 0 and counted for Bits array)
-         *        so offset == 0 means the first bit in Bits array
-         *   string: actual decoded String
+         * and store them in the pool, in the order of data, while 'runStarts' keeps:
+         *   bit offset of the beginning of every String (offset starting at 0 and counted for Bits array)
+         *   so offset == 0 means the first bit in Bits array
          */
-        Map<Integer, String> rawStrings = new HashMap<>();
-        int offset = 0;
-        Wrap offsetWrap = new Wrap(offset);
-        while (offsetWrap.getValue() < bits.length()) {
-            int key = offsetWrap.getValue();
+        pool = new String[stringIds.length + 1];
+        int[] runStarts = new int[pool.length];
+        int runCount = 0;
+        Wrap offsetWrap = new Wrap(0);
+        ProgressReporter progress = new ProgressReporter(progressListener, ProgressListener.STAGE_DECODE, decoder.bitLength());
+        while (offsetWrap.getValue() < decoder.bitLength()) {
+            if (runCount == pool.length) {
+                pool = Arrays.copyOf(pool, runCount * 2);
+                runStarts = Arrays.copyOf(runStarts, runCount * 2);
+            }
+            runStarts[runCount] = offsetWrap.getValue();
             /** read the String and update 'offset' variable to store NEXT String offset */
-            String s = GetString(offsetWrap);
-            rawStrings.put(key, s);
+            pool[runCount++] = GetString(offsetWrap);
+            progress.update(offsetWrap.getValue());
         }
+        progress.done();
+        metrics.count(PipelineMetrics.STRINGS_DECODED, runCount);
+        metrics.count(PipelineMetrics.BITS_PROCESSED, Math.min(offsetWrap.getValue(), decoder.bitLength()));
+        metrics.endStage(PipelineMetrics.STAGE_DECODE);
 
         /** **************** STEP FIVE ****************
          *         -- bind data to String IDs --
-         * go through Entries in TLK file and read it's String ID and offset
-         * then check if offset is a key in rawStrings and if it is, then bind data.
-         * Sometimes there's no such key, in that case, our String ID is probably a substring
-         * of another String present in rawStrings.
+         * go through Entries in TLK file and find the String starting at their offset.
+         * Sometimes there's no such String, in that case, our String ID is probably a substring
+         * of the String starting before the offset.
          */
-        stringRefs = new LinkedList<>();
-        for (int i = 0; i < header.entry1Count + header.entry2Count; i++) {
-            TlkStringRef sRef = new TlkStringRef(r);
-            sRef.position = i;
-            if (sRef.bitOffset >= 0) {
-                /** actually, it should store the fullString and subStringOffset,
-                 * but as we don't have to use this compression feature,
-                 * we will store only the part of String we need
-                 * */
-                /** int key = rawStrings.Keys.Last(c => c < sRef.BitOffset);
-                 * String fullString = rawStrings[key];
-                 * int subStringOffset = fullString.LastIndexOf(partString);
-                 * sRef.StartOfString = subStringOffset;
-                 * sRef.Data = fullString;
-                 */
-                sRef.data = rawStrings.containsKey(sRef.bitOffset) ?
-                    rawStrings.get(sRef.bitOffset) :
-                    GetString(new Wrap(sRef.bitOffset));
+        int poolSize = runCount;
+        progress = new ProgressReporter(progressListener, ProgressListener.STAGE_BIND, stringIds.length);
+        for (int i = 0; i < stringIds.length; i++) {
+            int bitOffset = bitOffsets[i];
+            if (bitOffset >= 0) {
+                int run = Arrays.binarySearch(runStarts, 0, runCount, bitOffset);
+                if (run >= 0) {
+                    poolIndices[i] = run;
+                } else {
+                    /** the Entry shares the end of the String it points into,
+                     * it's stored as that String and index of the character the Entry starts at */
+                    run = -run - 2;
+                    int startChar = run < 0 || pool[run] == null ? -1 : decoder.charIndex(runStarts[run], bitOffset);
+                    if (startChar >= 0) {
+                        poolIndices[i] = run;
+                        startChars[i] = startChar;
+                    } else {
+                        /** offset isn't at a character of any String, decode it on its own */
+                        if (poolSize == pool.length) {
+                            pool = Arrays.copyOf(pool, poolSize * 2);
+                        }
+                        pool[poolSize] = decodeCounted(bitOffset, metrics);
+                        poolIndices[i] = poolSize++;
+                    }
+                    metrics.count(PipelineMetrics.SUBSTRING_FALLBACKS, 1);
+                }
+            }
+            progress.update(i);
+        }
+        progress.done();
+        pool = Arrays.copyOf(pool, poolSize);
+        metrics.endStage(PipelineMetrics.STAGE_BIND);
+        if (mode == LoadMode.INDEXED) {
+            /** the index only speeds up the next load, the file is loaded even if it can't be written */
+            try {
+                TlkIndex.write(TlkIndex.indexFileOf(fileName), r.size(), checksum, bitOffsets, pool, poolIndices, startChars);
+            } catch (IOException e) {
+                metrics.fail(PipelineMetrics.INDEX_WRITE_FAILURES, e);
+            }
+            metrics.endStage(PipelineMetrics.STAGE_INDEX);
+        }
+        metrics.finish(metricsListener);
+    }
+
+    /** <summary>
+     *      Replaces steps four and five for parallel mode.
+     *      Every String starts at a known offset from Entries, so distinct offsets are sorted,
+     *      decoded independently in chunks and bound back to Entries in their original order.
+     *      Substrings are decoded from their own offsets, so they don't share Strings in the pool.
+     * </summary>
+     */
+    private void decodeParallel(PipelineMetrics metrics) {
+        ProgressReporter progress = new ProgressReporter(progressListener, ProgressListener.STAGE_DECODE, decoder.bitLength());
+        int[] offsets = Arrays.stream(bitOffsets)
+                .filter(bitOffset -> bitOffset >= 0)
+                .sorted()
+                .distinct()
+                .toArray();
+        pool = new String[offsets.length];
+        long bits = decoder.decodeAll(offsets, pool);
+        progress.done();
+        metrics.count(PipelineMetrics.STRINGS_DECODED, offsets.length);
+        metrics.count(PipelineMetrics.BITS_PROCESSED, bits);
+        metrics.endStage(PipelineMetrics.STAGE_DECODE);
+        for (int i = 0; i < bitOffsets.length; i++) {
+            if (bitOffsets[i] >= 0) {
+                poolIndices[i] = Arrays.binarySearch(offsets, bitOffsets[i]);
             }
-            stringRefs.add(sRef);
         }
-        r.close();
-        System.out.println("loadTlkData: "+ (System.nanoTime() - start)/1_000_000);
+        metrics.endStage(PipelineMetrics.STAGE_BIND);
+    }
+
+    /** <summary>
+     *      Returns data of the String with given ID, decoding it on first request.
+     * </summary>
+     * <param name="stringId"></param>
+     * <returns>
+     *      decoded String or null if there's no such ID or the Entry has no data
+     * </returns>
+     */
+    public String getString(int stringId) {
+        return getString(stringId, Gender.MALE);
+    }
+
+    /** <summary>
+     *      Returns data of the String with given ID as seen by the given gender, decoding it on first request.
+     * </summary>
+     * <returns>
+     *      decoded String or null if there's no such ID or the Entry has no data
+     * </returns>
+     */
+    public String getString(int stringId, Gender gender) {
+        int index = indexOf(stringId, gender);
+        return index < 0 ? null : getData(index, null);
+    }
+
+    /** <summary>
+     *      Finds the Entry with given String ID in the section of the given gender.
+     *      IDs missing in that section are looked up in the other one, so MALE finds
+     *      the first Entry with the ID in the whole file.
+     * </summary>
+     * <returns>
+     *      view of the Entry or null if there's no such ID
+     * </returns>
+     */
+    public TlkStringRef find(int stringId, Gender gender) {
+        int index = indexOf(stringId, gender);
+        return index < 0 ? null : new TlkStringRef(index);
+    }
+
+    private int indexOf(int stringId, Gender gender) {
+        if (maleEntries == null) {
+            return -1;
+        }
+        EntryIndex first = gender == Gender.FEMALE ? femaleEntries : maleEntries;
+        EntryIndex second = gender == Gender.FEMALE ? maleEntries : femaleEntries;
+        int index = first.get(stringId);
+        return index >= 0 ? index : second.get(stringId);
+    }
+
+    /** <summary>
+     *      Returns Entries in their order as a read-only list of views over the Entry arrays.
+     * </summary>
+     */
+    public List<TlkStringRef> getStringRefs() {
+        if (stringIds == null) {
+            return Collections.emptyList();
+        }
+        return new AbstractList<TlkStringRef>() {
+            @Override
+            public TlkStringRef get(int index) {
+                if (index < 0 || index >= stringIds.length) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + stringIds.length);
+                }
+                return new TlkStringRef(index);
+            }
+
+            @Override
+            public int size() {
+                return stringIds.length;
+            }
+        };
+    }
+
+    /** <param name="index">index of the Entry</param>
+     *  <param name="metrics">metrics of the running operation, null when decoding isn't counted</param> */
+    private String getData(int index, PipelineMetrics metrics) {
+        if (bitOffsets[index] < 0) {
+            return null;
+        }
+        String data = pooledData(index);
+        if (data != null) {
+            return data;
+        }
+        if (tlkIndex != null) {
+            data = tlkIndex.data(index);
+            pool[poolIndices[index]] = data;
+            return data;
+        }
+        if (stringCache != null) {
+            return decodeAt(bitOffsets[index], metrics);
+        }
+        data = decodeCounted(bitOffsets[index], metrics);
+        if (startChars[index] == 0) {
+            pool[poolIndices[index]] = data;
+        }
+        return data;
+    }
+
+    /** <summary>
+     *      Same as getData, but a String not decoded yet isn't stored in the pool,
+     *      so writing a lazily loaded file doesn't end up holding the whole string table.
+     * </summary>
+     */
+    private String streamData(int index, PipelineMetrics metrics) {
+        if (bitOffsets[index] < 0) {
+            return null;
+        }
+        String data = pooledData(index);
+        if (data != null) {
+            return data;
+        }
+        return tlkIndex != null ? tlkIndex.data(index) : decodeAt(bitOffsets[index], metrics);
+    }
+
+    /** <returns>producer decoding all Entries in order or null if strings are decoded by the writing thread</returns> */
+    private DecodeAheadQueue openDecodeAhead(PipelineMetrics metrics) {
+        if (!decodeAhead) {
+            return null;
+        }
+        return new DecodeAheadQueue(stringIds.length, i -> streamData(i, metrics), DecodeAheadQueue.DEFAULT_CAPACITY);
+    }
+
+    /** <summary>
+     *      Data of the Entry 'index' for export, Entries have to be requested in their order.
+     * </summary>
+     */
+    private String nextData(DecodeAheadQueue ahead, int index, PipelineMetrics metrics) throws IOException {
+        return ahead != null ? ahead.take() : streamData(index, metrics);
+    }
+
+    /** <returns>data of the Entry from the pool or null if it isn't decoded yet</returns> */
+    private String pooledData(int index) {
+        String data = pool[poolIndices[index]];
+        if (data == null || startChars[index] == 0) {
+            return data;
+        }
+        return data.substring(startChars[index]);
+    }
+
+    /** <summary>
+     *      Decodes the String starting at 'bitOffset', going through the cache if there's one.
+     * </summary>
+     */
+    private String decodeAt(int bitOffset, PipelineMetrics metrics) {
+        if (stringCache == null) {
+            return decodeCounted(bitOffset, metrics);
+        }
+        String data = stringCache.get(bitOffset);
+        if (data == null) {
+            data = decodeCounted(bitOffset, metrics);
+            stringCache.put(bitOffset, data);
+        }
+        return data;
+    }
+
+    private String decodeCounted(int bitOffset, PipelineMetrics metrics) {
+        Wrap offsetWrap = new Wrap(bitOffset);
+        String data = GetString(offsetWrap);
+        if (metrics != null) {
+            metrics.count(PipelineMetrics.STRINGS_DECODED, 1);
+            metrics.count(PipelineMetrics.BITS_PROCESSED, Math.min(offsetWrap.getValue(), decoder.bitLength()) - bitOffset);
+        }
+        return data;
     }
 
     /** <summary>
@@ -139,21 +425,23 @@ public class TlkFile  {
      *  <param name="fileName"></param>
      *  <param name="ff"></param>
      */
-    public void storeToFile(String fileName, FileFormat ff, FxmlController controller) throws XMLStreamException, IOException {
+    public void storeToFile(String fileName, FileFormat ff) throws IOException {
 
-        long start = System.nanoTime();
+        PipelineMetrics metrics = new PipelineMetrics(PipelineMetrics.OP_STORE, fileName);
         Files.deleteIfExists(Paths.get(fileName));
         /** for now, it's better not to sort, to preserve original order */
         // StringRefs.Sort(CompareTlkStringRef);
 
         if (ff.equals(FileFormat.XML)) {
-            saveToXmlFile(fileName, controller);
-            prettyXmlFile(fileName);
+            saveToXmlFile(fileName, metrics);
         } else {
-            saveToTextFile(fileName, controller);
+            saveToTextFile(fileName, ff, metrics);
         }
-
-        System.out.println("storeToFile: "+ (System.nanoTime() - start)/1_000_000);
+        /** strings not decoded yet (lazy mode) are decoded while they're written, it's counted in this stage */
+        metrics.endStage(PipelineMetrics.STAGE_WRITE);
+        metrics.count(PipelineMetrics.STRINGS_WRITTEN, stringIds.length);
+        metrics.count(PipelineMetrics.BYTES_WRITTEN, Files.size(Paths.get(fileName)));
+        metrics.finish(metricsListener);
     }
 
     /** <summary>
@@ -167,45 +455,11 @@ public class TlkFile  {
      *  </returns>
      *  <remarks>
      *      Global variables used:
-     *      List(of HuffmanNodes) CharacterTree
-     *      main.java.ru.BitArray Bits
+     *      HuffmanDecoder decoder (lookup tables built from CharacterTree and Bits)
      *  </remarks>
      */
     private String GetString(Wrap bitOffsetWrap) {
-        HuffmanNode root = characterTree.get(0);
-        HuffmanNode curNode = root;
-        String curString = "";
-        int i;
-        for (i = bitOffsetWrap.getValue(); i < bits.length(); i++) {
-            /** reading bits' sequence and decoding it to Strings while traversing Huffman Tree */
-            int nextNodeID = bits.getRev(i) ? curNode.rightNodeId : curNode.leftNodeId;
-
-            if (nextNodeID >= 0) {
-                /** it's an internal node - keep looking for a leaf */
-                curNode = characterTree.get(nextNodeID);
-            } else {
-                /** it's a leaf! */
-                char c = 0;
-                try {
-                    c = BitConverter.toCharRev(BitConverter.GetBytes(0xffff - nextNodeID), 0);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-                if (c != '\0') {
-                    /** it's not NULL */
-                    curString += c;
-                    curNode = root;
-                } else {
-                    /** it's a NULL terminating processed string, we're done */
-                    i++;
-                    bitOffsetWrap.setValue(i);
-                    return curString;
-                }
-            }
-        }
-        i++;
-        bitOffsetWrap.setValue(i);
-        return null;
+        return decoder.decode(bitOffsetWrap);
     }
 
     /** <summary>
@@ -213,122 +467,68 @@ public class TlkFile  {
      *  </summary>
      * <param name="fileName"></param>
      * */
-    private void saveToXmlFile(String fileName, FxmlController controller) throws XMLStreamException, IOException {
-        int totalCount = stringRefs.size();
-
-        // Creating FileWriter object
-        Writer fileWriter = new FileWriter(fileName);
-
-        // Getting the XMLOutputFactory instance
-        XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
-
-        // Creating XMLStreamWriter object from xmlOutputFactory.
-        XMLStreamWriter xr = xmlOutputFactory.createXMLStreamWriter(fileWriter);
-
-        xr.writeStartDocument("utf-8", "1.0");
-        xr.writeStartElement("tlkFile");
-        xr.writeAttribute("TLKToolVersion", "1.0.4");
-        xr.writeComment("Male entries section begin (ends at position " + (header.entry1Count - 1) + ")");
-
-        for (int i = 0; i < stringRefs.size(); i++) {
-            TlkStringRef s = stringRefs.get(i);
-            if (s.position == header.entry1Count) {
-                xr.writeComment("Male entries section end");
-                xr.writeComment("Female entries section begin (ends at position " + (header.entry1Count + header.entry2Count - 1) + ")");
-            }
-            xr.writeStartElement("string");
-
-            xr.writeStartElement("id");
-            xr.writeCharacters(String.valueOf(s.stringId));
-            xr.writeEndElement(); // </id>
+    private void saveToXmlFile(String fileName, PipelineMetrics metrics) throws IOException {
+        int totalCount = stringIds.length;
+        ProgressReporter progress = new ProgressReporter(progressListener, ProgressListener.STAGE_WRITE, totalCount);
+
+        /* output is indented while it's written, so there's no need to parse it back for pretty-printing */
+        try (DecodeAheadQueue ahead = openDecodeAhead(metrics);
+             IndentingXmlWriter xr = new IndentingXmlWriter(Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))) {
+            xr.writeStartElement("tlkFile");
+            xr.writeAttribute("TLKToolVersion", "1.0.4");
+            xr.writeComment("Male entries section begin (ends at position " + (header.entry1Count - 1) + ")");
+
+            for (int i = 0; i < totalCount; i++) {
+                if (positions[i] == header.entry1Count) {
+                    xr.writeComment("Male entries section end");
+                    xr.writeComment("Female entries section begin (ends at position " + (header.entry1Count + header.entry2Count - 1) + ")");
+                }
+                xr.writeStartElement("string");
 
-            xr.writeStartElement("position");
-            xr.writeCharacters(String.valueOf(s.position));
-            xr.writeEndElement(); // </position>
+                xr.writeStartElement("id");
+                xr.writeCharacters(String.valueOf(stringIds[i]));
+                xr.writeEndElement(); // </id>
 
-            xr.writeStartElement("data");// </data>
-            xr.writeCharacters(s.bitOffset < 0 ? "-1" : s.data);
-            xr.writeEndElement(); // </data>
+                xr.writeStartElement("position");
+                xr.writeCharacters(String.valueOf(positions[i]));
+                xr.writeEndElement(); // </position>
 
-            xr.writeEndElement(); // </string>
-        }
-        xr.writeComment("Female entries section end");
-        xr.writeEndElement(); // </tlkFile>
-        xr.flush();
-        xr.close();
-    }
+                xr.writeStartElement("data");
+                String data = nextData(ahead, i, metrics);
+                /* data that can't be decoded (e.g. no Huffman Tree in a file of empty strings) is written empty */
+                xr.writeCharacters(bitOffsets[i] < 0 ? "-1" : data == null ? "" : data);
+                xr.writeEndElement(); // </data>
 
-    private void prettyXmlFile(String fileName) throws IOException {
-        String xmlString;
-        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-            String line;
-            StringBuilder stringBuilder = new StringBuilder();
-            String ls = System.getProperty("line.separator");
-            while ((line = reader.readLine()) != null) {
-                stringBuilder.append(line);
-                stringBuilder.append(ls);
+                xr.writeEndElement(); // </string>
+                progress.update(i);
             }
-            xmlString = stringBuilder.toString();
-        }
-
-        try {
-            InputSource src = new InputSource(new StringReader(xmlString));
-            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(src);
-
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            transformerFactory.setAttribute("indent-number", 4);
-            Transformer transformer = transformerFactory.newTransformer();
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-
-            PrintWriter writer = new PrintWriter(fileName);
-            transformer.transform(new DOMSource(document), new StreamResult(writer));
-
-        } catch (IOException | IllegalArgumentException |
-                 ParserConfigurationException | TransformerException | SAXException e) {
-            throw new RuntimeException("Error occurs when pretty-printing xml:\n" + xmlString, e);
+            xr.writeComment("Female entries section end");
+            xr.writeEndElement(); // </tlkFile>
+            xr.writeEndDocument();
+            xr.flush();
         }
+        progress.done();
     }
 
     /** <summary>
-     *      Writing data in a normal text format.
+     *      Writing data in a normal text format (TXT or CSV), every line is written as soon as its String is decoded.
      * </summary>
-     * <remarks>
-     *      Currently not used by main application, but it works ok.
-     * </remarks>
      * <param name="fileName"></param>
+     * <param name="ff"></param>
      */
-    private void saveToTextFile(String fileName, FxmlController controller) {
-        int totalCount = stringRefs.size();
-
-        for (int i = 0; i < stringRefs.size(); i++) {
-            TlkStringRef s = stringRefs.get(i);
-            String line = s.stringId + ": " + s.data + "\r\n";
-
-            try (FileWriter fw = new FileWriter(fileName, true)) {
-                fw.write(line);
-            } catch (IOException e) {
-                e.printStackTrace();
+    private void saveToTextFile(String fileName, FileFormat ff, PipelineMetrics metrics) throws IOException {
+        int totalCount = stringIds.length;
+        ProgressReporter progress = new ProgressReporter(progressListener, ProgressListener.STAGE_WRITE, totalCount);
+
+        try (DecodeAheadQueue ahead = openDecodeAhead(metrics);
+             TextEntryWriter tw = TextEntryWriter.create(ff, Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < totalCount; i++) {
+                tw.writeEntry(stringIds[i], positions[i], nextData(ahead, i, metrics));
+                progress.update(i);
             }
+            tw.flush();
         }
-    }
-
-    public static int readInt32(InputStream in) throws IOException {
-        int ch1 = in.read();
-        int ch2 = in.read();
-        int ch3 = in.read();
-        int ch4 = in.read();
-        if ((ch1 | ch2 | ch3 | ch4) < 0) {
-            throw new EOFException();
-        }
-        return (ch4 << 24) + (ch3 << 16) + (ch2 << 8) + ch1;
-    }
-
-    public static PositionInputStream baseStreamSeek(long pos, String fileName) throws IOException {
-        PositionInputStream r = new PositionInputStream(Files.newInputStream(Paths.get(fileName)));
-        r.skip(pos);
-        return r;
+        progress.done();
     }
 
 //        /** for sorting */
@@ -346,38 +546,43 @@ public class TlkFile  {
         public int treeNodeCount;
         public int dataLen;
 
-        public TlkHeader(InputStream r) throws IOException {
-            this.magic = TlkFile.readInt32(r);
-            this.ver = TlkFile.readInt32(r);
-            this.minVer = TlkFile.readInt32(r);
-            this.entry1Count = TlkFile.readInt32(r);
-            this.entry2Count = TlkFile.readInt32(r);
-            this.treeNodeCount = TlkFile.readInt32(r);
-            this.dataLen = TlkFile.readInt32(r);
+        public TlkHeader(IntBuffer r) {
+            this.magic = r.get(0);
+            this.ver = r.get(1);
+            this.minVer = r.get(2);
+            this.entry1Count = r.get(3);
+            this.entry2Count = r.get(4);
+            this.treeNodeCount = r.get(5);
+            this.dataLen = r.get(6);
         }
 
     }
 
-    public static class TlkStringRef {
-        public int stringId;
-        public int bitOffset;
+    /** <summary>
+     *      View of a single Entry, data is decoded on the first request the same way as by getString.
+     * </summary>
+     */
+    public class TlkStringRef {
+        private final int index;
+
+        private TlkStringRef(int index) {
+            this.index = index;
+        }
 
-        public String data;
-        public int position;
+        public int getStringId() {
+            return stringIds[index];
+        }
 
-        public TlkStringRef(InputStream r) throws IOException {
-            this.stringId = TlkFile.readInt32(r);
-            this.bitOffset = TlkFile.readInt32(r);
+        public int getBitOffset() {
+            return bitOffsets[index];
         }
-    }
 
-    public static class HuffmanNode {
-        public int leftNodeId;
-        public int rightNodeId;
+        public int getPosition() {
+            return positions[index];
+        }
 
-        public HuffmanNode(InputStream r) throws IOException {
-            this.leftNodeId = TlkFile.readInt32(r);
-            this.rightNodeId = TlkFile.readInt32(r);
+        public String getData() {
+            return TlkFile.this.getData(index, null);
         }
     }
 
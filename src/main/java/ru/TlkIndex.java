@@ -0,0 +1,162 @@
+package ru;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/** <summary>
+ *      Index file kept next to a TLK file (name of the TLK file + ".idx") with all of its strings already decoded,
+ *      so the TLK file can be opened again without decoding anything.
+ *      The index is tied to the TLK file by its size and CRC32, if either differs the index is stale.
+ * </summary>
+ * <remarks>
+ *      File layout, all numbers little-endian:
+ *      header: magic, version (ints), size and CRC32 of the TLK file (longs), Entry count, number of chars in the blob (ints);
+ *      Entry section: (bit offset, char offset in the blob, length) for every Entry in the order of Entries,
+ *      length is -1 for Entries without data;
+ *      blob: decoded strings as UTF-16 chars, Entries sharing the end of another String point into it.
+ *      Sections are read directly from a memory mapping of the file.
+ * </remarks>
+ */
+class TlkIndex {
+
+    static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x494b4c54; // "TLKI"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES + 2 * Long.BYTES;
+    private static final int ENTRY_SIZE = 3;
+
+    private final IntBuffer entries;
+    private final CharBuffer blob;
+
+    private TlkIndex(IntBuffer entries, CharBuffer blob) {
+        this.entries = entries;
+        this.blob = blob;
+    }
+
+    static Path indexFileOf(String tlkFileName) {
+        return Paths.get(tlkFileName + EXTENSION);
+    }
+
+    /** <summary>
+     *      Maps the index file if it exists and belongs to the TLK file with given size and CRC32.
+     * </summary>
+     * <returns>the index or null if it's missing, stale or damaged</returns>
+     */
+    static TlkIndex open(Path indexFile, long tlkSize, long tlkChecksum, int tlkEntryCount) throws IOException {
+        if (!Files.isRegularFile(indexFile)) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getLong(8) != tlkSize || buffer.getLong(16) != tlkChecksum) {
+            return null;
+        }
+        int entryCount = buffer.getInt(24);
+        int blobChars = buffer.getInt(28);
+        long entriesOffset = HEADER_SIZE;
+        long blobOffset = entriesOffset + (long) entryCount * ENTRY_SIZE * Integer.BYTES;
+        if (entryCount != tlkEntryCount || blobChars < 0
+                || blobOffset + (long) blobChars * Character.BYTES != buffer.capacity()) {
+            return null;
+        }
+        IntBuffer entries = slice(buffer, (int) entriesOffset, (int) blobOffset).asIntBuffer();
+        /** every Entry has to point inside the blob, so a damaged index is rebuilt instead of failing later */
+        for (int i = 0; i < entryCount; i++) {
+            int charOffset = entries.get(i * ENTRY_SIZE + 1);
+            int length = entries.get(i * ENTRY_SIZE + 2);
+            if (length < -1 || length >= 0 && (charOffset < 0 || (long) charOffset + length > blobChars)) {
+                return null;
+            }
+        }
+        return new TlkIndex(entries, slice(buffer, (int) blobOffset, buffer.capacity()).asCharBuffer());
+    }
+
+    /** <summary>
+     *      Writes the index of a decoded TLK file. The file is written under a temporary name and moved in place,
+     *      so a reader never sees a half-written index. The temporary file is removed if writing fails.
+     * </summary>
+     * <param name="pool">decoded strings, Entry i is pool[poolIndices[i]] starting at startChars[i]</param>
+     */
+    static void write(Path indexFile, long tlkSize, long tlkChecksum, int[] bitOffsets,
+                      String[] pool, int[] poolIndices, int[] startChars) throws IOException {
+        int entryCount = bitOffsets.length;
+        /** every String of the pool is written once, in the order of the pool */
+        int[] poolStarts = new int[pool.length];
+        int blobChars = 0;
+        for (int p = 0; p < pool.length; p++) {
+            poolStarts[p] = blobChars;
+            if (pool[p] != null) {
+                blobChars += pool[p].length();
+            }
+        }
+
+        int blobOffset = HEADER_SIZE + entryCount * ENTRY_SIZE * Integer.BYTES;
+        ByteBuffer bytes = ByteBuffer.allocate(blobOffset + blobChars * Character.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(MAGIC).putInt(VERSION).putLong(tlkSize).putLong(tlkChecksum).putInt(entryCount).putInt(blobChars);
+        for (int i = 0; i < entryCount; i++) {
+            String data = bitOffsets[i] < 0 ? null : pool[poolIndices[i]];
+            bytes.putInt(bitOffsets[i]);
+            if (data == null) {
+                bytes.putInt(0).putInt(-1);
+            } else {
+                bytes.putInt(poolStarts[poolIndices[i]] + startChars[i]).putInt(data.length() - startChars[i]);
+            }
+        }
+        CharBuffer chars = bytes.asCharBuffer();
+        for (String data : pool) {
+            if (data != null) {
+                chars.put(data);
+            }
+        }
+
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, bytes.array());
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /** <returns>data of the Entry copied from the blob or null if the Entry has no data</returns> */
+    String data(int entry) {
+        int charOffset = entries.get(entry * ENTRY_SIZE + 1);
+        int length = entries.get(entry * ENTRY_SIZE + 2);
+        if (length < 0) {
+            return null;
+        }
+        char[] chars = new char[length];
+        CharBuffer view = blob.duplicate();
+        view.position(charOffset);
+        view.get(chars);
+        return new String(chars);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(from);
+        dup.limit(to);
+        return dup.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,140 @@
+package ru;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/** <summary>
+ *      Reads TLK file sections from a single memory mapping of the file.
+ *      File layout: header (7 ints), entries (2 ints each), Huffman Tree nodes (2 ints each), coded data.
+ * </summary>
+ */
+class TlkReader {
+
+    static final int HEADER_SIZE = 7 * Integer.BYTES;
+    static final int ENTRY_SIZE = 2 * Integer.BYTES;
+    static final int NODE_SIZE = 2 * Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final IntBuffer ints;
+    private TlkFile.TlkHeader header;
+
+    private TlkReader(ByteBuffer buffer) {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.ints = this.buffer.asIntBuffer();
+    }
+
+    /** <summary>
+     *      Maps the whole file into memory. Channel is closed right away, mapping stays valid.
+     * </summary>
+     * <param name="fileName"></param>
+     */
+    static TlkReader open(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            return new TlkReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** <summary>
+     *      Returns size of the mapped file in bytes.
+     * </summary>
+     */
+    int size() {
+        return buffer.capacity();
+    }
+
+    /** <summary>
+     *      Returns CRC32 of the whole file.
+     * </summary>
+     */
+    long checksum() {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return crc.getValue();
+    }
+
+    TlkFile.TlkHeader readHeader() throws IOException {
+        if (buffer.capacity() < HEADER_SIZE) {
+            throw new IOException("File is too short to be a TLK file");
+        }
+        header = new TlkFile.TlkHeader(ints);
+        return header;
+    }
+
+    /** <summary>
+     *      Reads String IDs of entries of both sections (male and female), in the order of entries.
+     * </summary>
+     */
+    int[] readStringIds() throws IOException {
+        return readEntryColumn(0);
+    }
+
+    /** <summary>
+     *      Reads bit offsets of entries of both sections, in the order of entries.
+     * </summary>
+     */
+    int[] readBitOffsets() throws IOException {
+        return readEntryColumn(1);
+    }
+
+    /** <summary>
+     *      Reads Huffman Tree nodes as pairs of children IDs: left child of node n at 2 * n, right one at 2 * n + 1.
+     * </summary>
+     */
+    int[] readCharacterTree() throws IOException {
+        IntBuffer nodes = intsAt(treeOffset(), header.treeNodeCount * 2);
+        int[] characterTree = new int[header.treeNodeCount * 2];
+        nodes.get(characterTree);
+        return characterTree;
+    }
+
+    /** <summary>
+     *      Returns coded data section as a read-only view of the mapping, nothing is copied.
+     * </summary>
+     */
+    ByteBuffer data() throws IOException {
+        int offset = treeOffset() + header.treeNodeCount * NODE_SIZE;
+        checkBounds(offset, header.dataLen);
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + header.dataLen);
+        return dup.slice().asReadOnlyBuffer();
+    }
+
+    private int[] readEntryColumn(int column) throws IOException {
+        int count = entryCount();
+        IntBuffer entries = intsAt(HEADER_SIZE, count * 2);
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = entries.get(2 * i + column);
+        }
+        return values;
+    }
+
+    int entryCount() {
+        return header.entry1Count + header.entry2Count;
+    }
+
+    private int treeOffset() {
+        return HEADER_SIZE + entryCount() * ENTRY_SIZE;
+    }
+
+    private IntBuffer intsAt(int offset, int count) throws IOException {
+        checkBounds(offset, count * Integer.BYTES);
+        IntBuffer view = ints.duplicate();
+        view.position(offset / Integer.BYTES);
+        view.limit(offset / Integer.BYTES + count);
+        return view.slice();
+    }
+
+    private void checkBounds(int offset, int length) throws IOException {
+        if (length < 0 || offset < 0 || (long) offset + length > buffer.capacity()) {
+            throw new IOException("TLK file is truncated or header is corrupted");
+        }
+    }
+}
@@ -0,0 +1,426 @@
+package ru;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** <summary>
+ *      Full-text search over decoded strings of a TLK file, case-insensitive.
+ *      Every distinct String (document) is split into trigrams, for every trigram the index keeps the ascending list
+ *      of documents containing it. A query is answered by intersecting posting lists of its trigrams
+ *      and checking the remaining candidates, queries shorter than three characters take documents
+ *      of all trigrams starting with them.
+ * </summary>
+ * <remarks>
+ *      Posting lists are compressed as differences of document numbers written as varints into a single byte array.
+ *      The index is built once and doesn't change, it's safe to query it from several threads.
+ * </remarks>
+ */
+public class TlkSearchIndex {
+
+    private static final int GRAM = 3;
+
+    private final List<TlkFile.TlkStringRef> stringRefs;
+    /** lower-cased distinct Strings */
+    private final String[] documents;
+    /** Entries of document d are docEntries[docEntryStarts[d]] .. docEntries[docEntryStarts[d + 1] - 1] */
+    private final int[] docEntryStarts;
+    private final int[] docEntries;
+    /** sorted trigrams packed as three chars in a long, posting list of grams[g] starts at postingStarts[g] */
+    private final long[] grams;
+    private final int[] postingStarts;
+    private final int[] postingCounts;
+    private final byte[] postings;
+
+    /** <summary>
+     *      Builds the index of all Entries with data, strings not decoded yet (lazy mode) are decoded now.
+     * </summary>
+     * <param name="tlkFile">loaded TLK file</param>
+     */
+    public TlkSearchIndex(TlkFile tlkFile) {
+        stringRefs = tlkFile.getStringRefs();
+
+        /** the same String is often used by several Entries, it's indexed once */
+        Map<String, Integer> documentNumbers = new HashMap<>();
+        List<String> documentList = new ArrayList<>();
+        int[] entryDocuments = new int[stringRefs.size()];
+        int[] docSizes = new int[stringRefs.size()];
+        for (int i = 0; i < entryDocuments.length; i++) {
+            String data = stringRefs.get(i).getData();
+            if (data == null) {
+                entryDocuments[i] = -1;
+                continue;
+            }
+            String folded = fold(data);
+            Integer d = documentNumbers.get(folded);
+            if (d == null) {
+                d = documentList.size();
+                documentNumbers.put(folded, d);
+                documentList.add(folded);
+            }
+            entryDocuments[i] = d;
+            docSizes[d]++;
+        }
+        documents = documentList.toArray(new String[0]);
+
+        docEntryStarts = new int[documents.length + 1];
+        for (int d = 0; d < documents.length; d++) {
+            docEntryStarts[d + 1] = docEntryStarts[d] + docSizes[d];
+        }
+        docEntries = new int[docEntryStarts[documents.length]];
+        int[] filled = Arrays.copyOf(docEntryStarts, documents.length);
+        for (int i = 0; i < entryDocuments.length; i++) {
+            if (entryDocuments[i] >= 0) {
+                docEntries[filled[entryDocuments[i]]++] = i;
+            }
+        }
+
+        /** number every distinct trigram in the order of first appearance and count documents containing it,
+         *  documents of every trigram are written in ascending order of documents */
+        GramTable table = new GramTable();
+        int[] lastDocuments = new int[1024];
+        int[] documentCounts = new int[1024];
+        int[] docGramIds = new int[1024];
+        int[] docGramEnds = new int[documents.length];
+        int gramCount = 0;
+        for (int d = 0; d < documents.length; d++) {
+            String text = documents[d];
+            for (int c = 0; c < text.length(); c++) {
+                int id = table.idOf(gramAt(text, c));
+                if (id == lastDocuments.length) {
+                    lastDocuments = Arrays.copyOf(lastDocuments, id * 2);
+                    documentCounts = Arrays.copyOf(documentCounts, id * 2);
+                }
+                if (documentCounts[id] == 0 || lastDocuments[id] != d) {
+                    lastDocuments[id] = d;
+                    documentCounts[id]++;
+                    if (gramCount == docGramIds.length) {
+                        docGramIds = Arrays.copyOf(docGramIds, gramCount * 2);
+                    }
+                    docGramIds[gramCount++] = id;
+                }
+            }
+            docGramEnds[d] = gramCount;
+        }
+        int keyCount = table.size();
+        int[] idStarts = new int[keyCount + 1];
+        for (int id = 0; id < keyCount; id++) {
+            idStarts[id + 1] = idStarts[id] + documentCounts[id];
+        }
+        int[] idDocuments = new int[gramCount];
+        int[] filledIds = Arrays.copyOf(idStarts, keyCount);
+        for (int d = 0, g = 0; d < documents.length; d++) {
+            for (; g < docGramEnds[d]; g++) {
+                idDocuments[filledIds[docGramIds[g]]++] = d;
+            }
+        }
+
+        /** keys are sorted, so trigrams starting with the same chars form a single range */
+        grams = table.keys();
+        Arrays.sort(grams);
+        postingStarts = new int[keyCount + 1];
+        postingCounts = new int[keyCount];
+        byte[] bytes = new byte[gramCount * 2];
+        int length = 0;
+        for (int k = 0; k < keyCount; k++) {
+            int id = table.idOf(grams[k]);
+            postingStarts[k] = length;
+            postingCounts[k] = documentCounts[id];
+            int previousDocument = 0;
+            for (int i = idStarts[id]; i < idStarts[id + 1]; i++) {
+                if (length + 5 > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+                length = writeVarint(bytes, length, idDocuments[i] - previousDocument);
+                previousDocument = idDocuments[i];
+            }
+        }
+        postingStarts[keyCount] = length;
+        postings = Arrays.copyOf(bytes, length);
+    }
+
+    /** <summary>
+     *      Finds Entries containing the query anywhere in their data.
+     * </summary>
+     * <returns>matching Entries in their order, empty for an empty query</returns>
+     */
+    public List<TlkFile.TlkStringRef> findSubstring(String query) {
+        return find(query, false, false);
+    }
+
+    /** <summary>
+     *      Finds Entries with a word starting with the query, e.g. "norm" finds "Normandy" but not "abnormal".
+     *      Words are runs of letters and digits.
+     * </summary>
+     * <returns>matching Entries in their order, empty for an empty query</returns>
+     */
+    public List<TlkFile.TlkStringRef> findPrefix(String query) {
+        return find(query, true, false);
+    }
+
+    /** <summary>
+     *      Finds Entries containing the query as whole words, it may consist of several words.
+     * </summary>
+     * <returns>matching Entries in their order, empty for an empty query</returns>
+     */
+    public List<TlkFile.TlkStringRef> findWord(String query) {
+        return find(query, true, true);
+    }
+
+    /** <param name="wordStart">match has to start at the beginning of a word</param>
+     *  <param name="wordEnd">match has to end at the end of a word</param> */
+    private List<TlkFile.TlkStringRef> find(String query, boolean wordStart, boolean wordEnd) {
+        if (query.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String folded = fold(query);
+        int[] candidates = candidates(folded);
+        int[] entries = new int[16];
+        int entryCount = 0;
+        for (int d : candidates) {
+            if (matches(documents[d], folded, wordStart, wordEnd)) {
+                for (int e = docEntryStarts[d]; e < docEntryStarts[d + 1]; e++) {
+                    if (entryCount == entries.length) {
+                        entries = Arrays.copyOf(entries, entryCount * 2);
+                    }
+                    entries[entryCount++] = docEntries[e];
+                }
+            }
+        }
+        /** documents are numbered by their first Entry, Entries sharing a document come later */
+        Arrays.sort(entries, 0, entryCount);
+        List<TlkFile.TlkStringRef> result = new ArrayList<>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            result.add(stringRefs.get(entries[i]));
+        }
+        return result;
+    }
+
+    /** <summary>
+     *      Documents containing every trigram of the query, starting from the shortest posting list.
+     * </summary>
+     */
+    private int[] candidates(String query) {
+        if (query.length() < GRAM) {
+            return shortQueryCandidates(query);
+        }
+        int[] keys = new int[query.length() - GRAM + 1];
+        for (int c = 0; c < keys.length; c++) {
+            keys[c] = Arrays.binarySearch(grams, gramAt(query, c));
+            if (keys[c] < 0) {
+                return new int[0];
+            }
+        }
+        int rarest = 0;
+        for (int c = 1; c < keys.length; c++) {
+            if (postingCounts[keys[c]] < postingCounts[keys[rarest]]) {
+                rarest = c;
+            }
+        }
+        int[] result = decode(keys[rarest]);
+        int count = result.length;
+        for (int c = 0; c < keys.length && count > 0; c++) {
+            if (c != rarest) {
+                count = intersect(result, count, keys[c]);
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /** <summary>
+     *      Documents with a gram starting with the query, grams are sorted, so they are a single range of keys.
+     * </summary>
+     */
+    private int[] shortQueryCandidates(String query) {
+        long first = 0;
+        for (int i = 0; i < GRAM; i++) {
+            first = first << 16 | (i < query.length() ? query.charAt(i) : 0);
+        }
+        long last = first | (1L << 16 * (GRAM - query.length())) - 1;
+        int from = Arrays.binarySearch(grams, first);
+        int to = Arrays.binarySearch(grams, last);
+        from = from < 0 ? -from - 1 : from;
+        to = to < 0 ? -to - 1 : to + 1;
+
+        boolean[] found = new boolean[documents.length];
+        int count = 0;
+        for (int key = from; key < to; key++) {
+            for (int document : decode(key)) {
+                if (!found[document]) {
+                    found[document] = true;
+                    count++;
+                }
+            }
+        }
+        int[] result = new int[count];
+        int r = 0;
+        for (int d = 0; d < found.length && r < count; d++) {
+            if (found[d]) {
+                result[r++] = d;
+            }
+        }
+        return result;
+    }
+
+    private int[] decode(int key) {
+        int[] result = new int[postingCounts[key]];
+        int position = postingStarts[key];
+        int document = 0;
+        for (int i = 0; i < result.length; i++) {
+            int delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = postings[position++];
+                delta |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            document += delta;
+            result[i] = document;
+        }
+        return result;
+    }
+
+    /** <summary>
+     *      Keeps in the first 'count' items of 'candidates' only documents present in the posting list of 'key'.
+     * </summary>
+     * <returns>number of kept documents</returns>
+     */
+    private int intersect(int[] candidates, int count, int key) {
+        int position = postingStarts[key];
+        int end = postingStarts[key + 1];
+        int document = 0;
+        int kept = 0;
+        int i = 0;
+        while (i < count && position < end) {
+            int delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = postings[position++];
+                delta |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            document += delta;
+            while (i < count && candidates[i] < document) {
+                i++;
+            }
+            if (i < count && candidates[i] == document) {
+                candidates[kept++] = document;
+                i++;
+            }
+        }
+        return kept;
+    }
+
+    private static boolean matches(String text, String query, boolean wordStart, boolean wordEnd) {
+        for (int at = text.indexOf(query); at >= 0; at = text.indexOf(query, at + 1)) {
+            int end = at + query.length();
+            if ((!wordStart || at == 0 || !Character.isLetterOrDigit(text.charAt(at - 1)))
+                    && (!wordEnd || end == text.length() || !Character.isLetterOrDigit(text.charAt(end)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** <summary>
+     *      Lower-cases every char on its own, so folded text has the same length as the original one.
+     * </summary>
+     */
+    private static String fold(String s) {
+        char[] chars = new char[s.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(s.charAt(i));
+        }
+        return new String(chars);
+    }
+
+    /** <summary>
+     *      Packs three chars starting at 'c' into a long, chars past the end of the text are 0.
+     *      Grams of the last two chars of a text are padded this way, so every occurrence of a shorter query
+     *      is the beginning of some gram.
+     * </summary>
+     */
+    private static long gramAt(String text, int c) {
+        long gram = 0;
+        for (int i = c; i < c + GRAM; i++) {
+            gram = gram << 16 | (i < text.length() ? text.charAt(i) : 0);
+        }
+        return gram;
+    }
+
+    /** <summary>
+     *      Open-addressing hash table numbering trigrams in the order they're added.
+     * </summary>
+     */
+    private static class GramTable {
+        private long[] keys = new long[1024];
+        /** number of the trigram plus one, 0 for free slots */
+        private int[] ids = new int[1024];
+        private int size;
+
+        /** <returns>number of the trigram, a new trigram gets the next number</returns> */
+        int idOf(long gram) {
+            int mask = keys.length - 1;
+            int slot = (int) (gram * 0x9e3779b97f4a7c15L >>> 32) & mask;
+            while (ids[slot] != 0) {
+                if (keys[slot] == gram) {
+                    return ids[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = gram;
+            ids[slot] = ++size;
+            if (size * 2 > keys.length) {
+                grow();
+            }
+            return size - 1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /** <returns>all trigrams in no particular order</returns> */
+        long[] keys() {
+            long[] result = new long[size];
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (ids[slot] != 0) {
+                    result[ids[slot] - 1] = keys[slot];
+                }
+            }
+            return result;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[] oldIds = ids;
+            keys = new long[oldKeys.length * 2];
+            ids = new int[oldIds.length * 2];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldIds[i] != 0) {
+                    int slot = (int) (oldKeys[i] * 0x9e3779b97f4a7c15L >>> 32) & mask;
+                    while (ids[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    ids[slot] = oldIds[i];
+                }
+            }
+        }
+    }
+
+    private static int writeVarint(byte[] bytes, int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[position++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+}
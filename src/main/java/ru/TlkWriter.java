@@ -0,0 +1,79 @@
+package ru;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** <summary>
+ *      Builds a whole TLK file in a single buffer sized up front and writes it with one channel write.
+ *      Sections have to be written in file order: header, entries, Huffman Tree nodes, coded data.
+ * </summary>
+ */
+class TlkWriter {
+
+    private final ByteBuffer buffer;
+
+    /** <summary>
+     *      Allocates buffer for the file with given section sizes.
+     * </summary>
+     * <param name="entryCount">number of entries in both sections</param>
+     * <param name="treeNodeCount"></param>
+     * <param name="dataLength">coded data length in bytes</param>
+     * <param name="order">LittleEndian for PC architecture and BigEndian for Xbox360</param>
+     */
+    TlkWriter(int entryCount, int treeNodeCount, int dataLength, ByteOrder order) {
+        long size = TlkReader.HEADER_SIZE
+                + (long) entryCount * TlkReader.ENTRY_SIZE
+                + (long) treeNodeCount * TlkReader.NODE_SIZE
+                + dataLength;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("TLK file would be too big: " + size + " bytes");
+        }
+        buffer = ByteBuffer.allocate((int) size).order(order);
+    }
+
+    void writeHeader(int magic, int ver, int minVer, int entry1Count, int entry2Count, int treeNodeCount, int dataLength) {
+        buffer.putInt(magic);
+        buffer.putInt(ver);
+        buffer.putInt(minVer);
+        buffer.putInt(entry1Count);
+        buffer.putInt(entry2Count);
+        buffer.putInt(treeNodeCount);
+        buffer.putInt(dataLength);
+    }
+
+    void writeEntry(int stringId, int bitOffset) {
+        buffer.putInt(stringId);
+        buffer.putInt(bitOffset);
+    }
+
+    void writeNode(int leftNodeId, int rightNodeId) {
+        buffer.putInt(leftNodeId);
+        buffer.putInt(rightNodeId);
+    }
+
+    void writeData(byte[] data) {
+        buffer.put(data);
+    }
+
+    /** <summary>
+     *      Writes the buffer to file, replacing its previous content.
+     * </summary>
+     * <param name="fileName"></param>
+     */
+    void save(String fileName) throws IOException {
+        if (buffer.hasRemaining()) {
+            throw new IllegalStateException("TLK file is incomplete, " + buffer.remaining() + " bytes are not written");
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}